@@ -0,0 +1,94 @@
+package run.fork.git.flex.sqldb;
+
+import ch.vorburger.exec.ManagedProcessException;
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import org.eclipse.jgit.lib.BaseRepositoryBuilder;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A scratch database for one benchmark trial. The server is the one in
+// FLEX_BENCH_URL (e.g. jdbc:mysql://localhost:3306) when it is set, with
+// FLEX_BENCH_USER and FLEX_BENCH_PASSWORD, and otherwise an embedded MariaDB
+// started once per JVM, so the suite runs offline. The database is dropped
+// on close.
+final class BenchDatabase implements AutoCloseable {
+    private static final AtomicInteger databases = new AtomicInteger();
+    private static String server;
+
+    private final String name;
+    private final Properties properties = new Properties();
+    private GitSqlRepository repository;
+
+    BenchDatabase() throws IOException {
+        name = "flex_bench_" + System.nanoTime() + "_" + databases.incrementAndGet();
+        properties.setProperty("user", env("FLEX_BENCH_USER", "root"));
+        properties.setProperty("password", env("FLEX_BENCH_PASSWORD", ""));
+        properties.setProperty("rewriteBatchedStatements", "true");
+        properties.setProperty("useSSL", "false");
+        properties.setProperty("serverTimezone", "UTC");
+        properties.setProperty("createDatabaseIfNotExist", "true");
+    }
+
+    private static String env(String name, String fallback) {
+        String value = System.getenv(name);
+        return value != null && !value.isEmpty() ? value : fallback;
+    }
+
+    private static synchronized String server() throws IOException {
+        if (server == null) {
+            server = System.getenv("FLEX_BENCH_URL");
+            if (server == null || server.isEmpty()) {
+                try {
+                    DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+                    config.setPort(0);
+                    config.addArg("--max_allowed_packet=64M");
+                    DB db = DB.newEmbeddedDB(config.build());
+                    db.start();
+                    server = "jdbc:mysql://localhost:" + config.getPort();
+                } catch (ManagedProcessException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (server.endsWith("/")) {
+                server = server.substring(0, server.length() - 1);
+            }
+        }
+        return server;
+    }
+
+    String getUrl() throws IOException {
+        return server() + "/" + name;
+    }
+
+    Properties getProperties() {
+        return properties;
+    }
+
+    // Creates the repository's tables; the database is made on first connect.
+    GitSqlRepository create(GitSqlOptions options) throws IOException {
+        repository = new GitSqlRepository(getUrl(), properties, options, new BaseRepositoryBuilder<>());
+        repository.create(true);
+        return repository;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (repository != null) {
+            repository.close();
+            repository = null;
+        }
+        try (Connection connection = DriverManager.getConnection(getUrl(), properties);
+             Statement drop = connection.createStatement()) {
+            drop.execute("DROP DATABASE IF EXISTS `" + name + "`");
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// A full import of a synthetic history held in memory: a linear chain of
+// commits over a two-level tree, each commit rewriting a few files. Every
+// invocation starts from empty tables.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark {
+    private static final int DIRECTORIES = 20;
+    private static final int FILES = 25;
+    private static final int EDITS = 5;
+
+    @Param({"1000"})
+    public int commits;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private InMemoryRepository source;
+    private List<ObjectId> tips;
+    private BenchDatabase database;
+    private GitSqlRepository target;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        source = new InMemoryRepository(new DfsRepositoryDescription("synthetic"));
+        tips = Collections.singletonList(generate(source, commits));
+
+        database = new BenchDatabase();
+        target = database.create(new GitSqlOptions().setMaxConnections(threads + 2));
+    }
+
+    private static ObjectId generate(InMemoryRepository repository, int commits) throws IOException {
+        Random random = new Random(42);
+        ObjectId[][] blobs = new ObjectId[DIRECTORIES][FILES];
+        ObjectId[] trees = new ObjectId[DIRECTORIES];
+        ObjectId head = null;
+
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            for (int d = 0; d < DIRECTORIES; d++) {
+                for (int f = 0; f < FILES; f++) {
+                    blobs[d][f] = inserter.insert(Constants.OBJ_BLOB, content(random));
+                }
+                trees[d] = tree(inserter, blobs[d]);
+            }
+
+            for (int c = 0; c < commits; c++) {
+                for (int e = 0; e < EDITS; e++) {
+                    int d = random.nextInt(DIRECTORIES);
+                    blobs[d][random.nextInt(FILES)] = inserter.insert(Constants.OBJ_BLOB, content(random));
+                    trees[d] = tree(inserter, blobs[d]);
+                }
+
+                TreeFormatter root = new TreeFormatter();
+                for (int d = 0; d < DIRECTORIES; d++) {
+                    root.append(String.format("dir-%02d", d), FileMode.TREE, trees[d]);
+                }
+
+                CommitBuilder commit = new CommitBuilder();
+                commit.setTreeId(inserter.insert(root));
+                if (head != null) {
+                    commit.setParentId(head);
+                }
+                PersonIdent ident = new PersonIdent("Bench", "bench@example.com", c * 60000L, 0);
+                commit.setAuthor(ident);
+                commit.setCommitter(ident);
+                commit.setMessage("Commit " + c + "\n");
+                head = inserter.insert(commit);
+            }
+            inserter.flush();
+        }
+
+        RefUpdate update = repository.updateRef(Constants.R_HEADS + Constants.MASTER);
+        update.setNewObjectId(head);
+        update.update();
+        return head;
+    }
+
+    private static ObjectId tree(ObjectInserter inserter, ObjectId[] blobs) throws IOException {
+        TreeFormatter tree = new TreeFormatter();
+        for (int f = 0; f < blobs.length; f++) {
+            tree.append(String.format("file-%03d.txt", f), FileMode.REGULAR_FILE, blobs[f]);
+        }
+        return inserter.insert(tree);
+    }
+
+    // Text-like content of a few hundred bytes to a few kilobytes.
+    private static byte[] content(Random random) {
+        byte[] data = new byte[200 + random.nextInt(4000)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (random.nextInt(16) == 0 ? '\n' : 'a' + random.nextInt(26));
+        }
+        return data;
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws IOException {
+        target.create(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.close();
+        source.close();
+    }
+
+    @Benchmark
+    public long importAll() throws IOException {
+        ImportPipeline pipeline = new ImportPipeline(source, Collections.nCopies(threads, target))
+                .setReaderThreads(threads)
+                .setReportInterval(0)
+                .setOutput(new PrintStream(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+                }));
+        pipeline.run(tips, Collections.<ObjectId>emptyList());
+        return pipeline.getObjectCount();
+    }
+}
@@ -0,0 +1,96 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// One flushed insert batch per operation. Every object is new, so nothing
+// is skipped as a duplicate. Sizes are drawn from one of three mixes:
+// small (source files), large (binaries) and mixed, which is mostly small
+// with the occasional large object.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectInsertBenchmark {
+    private static final int PAYLOADS = 1024;
+
+    @Param({"1", "100", "1000"})
+    public int batchSize;
+
+    @Param({"small", "mixed", "large"})
+    public String sizes;
+
+    private BenchDatabase database;
+    private GitSqlRepository repository;
+    private final byte[][] payloads = new byte[PAYLOADS][];
+    private long counter;
+
+    @Setup
+    public void setup() throws IOException {
+        database = new BenchDatabase();
+        repository = database.create(new GitSqlOptions());
+
+        Random random = new Random(42);
+        for (int i = 0; i < PAYLOADS; i++) {
+            payloads[i] = new byte[size(random)];
+            random.nextBytes(payloads[i]);
+        }
+    }
+
+    private int size(Random random) {
+        switch (sizes) {
+            case "small":
+                return 64 + random.nextInt(4096);
+            case "large":
+                return 256 * 1024 + random.nextInt(768 * 1024);
+            default:
+                int roll = random.nextInt(100);
+                if (roll < 90) {
+                    return 64 + random.nextInt(4096);
+                } else if (roll < 99) {
+                    return 16 * 1024 + random.nextInt(48 * 1024);
+                }
+                return 256 * 1024 + random.nextInt(768 * 1024);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        database.close();
+    }
+
+    @Benchmark
+    public void insertBatch() throws IOException {
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            for (int i = 0; i < batchSize; i++) {
+                // A fresh copy with a unique prefix, as the inserter may
+                // hold on to the array until the flush.
+                byte[] data = payloads[(int) (counter % PAYLOADS)].clone();
+                long unique = counter++;
+                for (int b = 0; b < 8 && b < data.length; b++) {
+                    data[b] = (byte) (unique >>> (b * 8));
+                }
+                inserter.insert(Constants.OBJ_BLOB, data);
+            }
+            inserter.flush();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.AsyncObjectLoaderQueue;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Reads of stored blobs, one at a time and through the bulk queue. The
+// object cache is off so every read is a round trip.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectReadBenchmark {
+    private static final int OBJECTS = 2000;
+    private static final int BULK = 100;
+
+    @Param({"100", "4096", "262144"})
+    public int objectSize;
+
+    private BenchDatabase database;
+    private ObjectReader reader;
+    private final List<ObjectId> ids = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        database = new BenchDatabase();
+        GitSqlRepository repository = database.create(new GitSqlOptions().setObjectCacheLimit(0));
+
+        Random random = new Random(42);
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            for (int i = 0; i < OBJECTS; i++) {
+                byte[] data = new byte[objectSize];
+                random.nextBytes(data);
+                ids.add(inserter.insert(Constants.OBJ_BLOB, data));
+            }
+            inserter.flush();
+        }
+        reader = repository.newObjectReader();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+        database.close();
+    }
+
+    @Benchmark
+    public void openSingle(Blackhole blackhole) throws IOException {
+        ObjectId id = ids.get(next);
+        next = (next + 1) % OBJECTS;
+        blackhole.consume(reader.open(id).getCachedBytes());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK)
+    public void openBulk(Blackhole blackhole) throws IOException {
+        List<ObjectId> batch = ids.subList(next, next + BULK);
+        next = (next + BULK) % OBJECTS;
+        AsyncObjectLoaderQueue<ObjectId> queue = reader.open(batch, true);
+        try {
+            while (queue.next()) {
+                blackhole.consume(queue.open().getCachedBytes());
+            }
+        } finally {
+            queue.release();
+        }
+    }
+
+    @Benchmark
+    public boolean has() throws IOException {
+        ObjectId id = ids.get(next);
+        next = (next + 1) % OBJECTS;
+        return reader.has(id);
+    }
+}
@@ -0,0 +1,91 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Listing every ref, with and without the ref cache. With the cache on an
+// unchanged listing costs one version check; without it, a full scan.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RefListingBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int refs;
+
+    @Param({"true", "false"})
+    public boolean refCache;
+
+    private BenchDatabase database;
+    private GitSqlRepository repository;
+
+    @Setup
+    public void setup() throws IOException {
+        database = new BenchDatabase();
+        repository = database.create(new GitSqlOptions().setRefCache(refCache));
+
+        ObjectId commit;
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            CommitBuilder builder = new CommitBuilder();
+            builder.setTreeId(inserter.insert(new TreeFormatter()));
+            PersonIdent ident = new PersonIdent("Bench", "bench@example.com", 0, 0);
+            builder.setAuthor(ident);
+            builder.setCommitter(ident);
+            builder.setMessage("bench\n");
+            commit = inserter.insert(builder);
+            inserter.flush();
+        }
+
+        BatchRefUpdate batch = repository.getRefDatabase().newBatchUpdate();
+        for (int i = 0; i < refs; i++) {
+            String name = String.format("%sbranch-%06d", Constants.R_HEADS, i);
+            batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), commit, name));
+        }
+        try (RevWalk walk = new RevWalk(repository)) {
+            batch.execute(walk, NullProgressMonitor.INSTANCE);
+        }
+        for (ReceiveCommand command : batch.getCommands()) {
+            if (command.getResult() != ReceiveCommand.Result.OK) {
+                throw new IOException(command.getRefName() + ": " + command.getResult());
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        database.close();
+    }
+
+    @Benchmark
+    public Map<String, Ref> getRefs() throws IOException {
+        return repository.getRefDatabase().getRefs(RefDatabase.ALL);
+    }
+}
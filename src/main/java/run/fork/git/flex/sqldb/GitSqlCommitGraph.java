@@ -0,0 +1,620 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.AsyncObjectLoaderQueue;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+// Parents, tree, commit time and generation number of every stored commit,
+// so history can be walked without loading commit objects. A generation of
+// 0 means it is not known yet because a parent was missing when the commit
+// was written; updateGenerations() fills those in.
+public class GitSqlCommitGraph {
+    public static final int GENERATION_UNKNOWN = 0;
+
+    private final GitSqlRepository parent;
+
+    public GitSqlCommitGraph(GitSqlRepository parent) {
+        this.parent = parent;
+    }
+
+    static void createTable(Connection connection) throws SQLException {
+        try (Statement creates = connection.createStatement()) {
+            creates.execute(
+                    "CREATE TABLE IF NOT EXISTS `git.commits` (\n" +
+                            "  `network` INT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Object Network',\n" +
+                            "  `hash` BINARY(20) NOT NULL COMMENT 'Commit Hash',\n" +
+                            "  `tree` BINARY(20) NOT NULL COMMENT 'Tree Hash',\n" +
+                            "  `parents` BLOB NOT NULL COMMENT 'Concatenated Parent Hashes',\n" +
+                            "  `commit_time` INT NOT NULL COMMENT 'Committer Time',\n" +
+                            "  `generation` INT NOT NULL DEFAULT 0 COMMENT 'Generation Number',\n" +
+                            "  PRIMARY KEY (`network`, `hash`),\n" +
+                            "  KEY `generation` (`network`, `generation`, `commit_time`)\n" +
+                            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Commit Graph'"
+            );
+        }
+    }
+
+    static final String INSERT =
+            "INSERT IGNORE INTO `git.commits` (`network`, `hash`, `tree`, `parents`, `commit_time`, `generation`)" +
+                    " VALUES (?, ?, ?, ?, ?, ?)";
+
+    public static class Commit {
+        private final ObjectId id;
+        private final ObjectId tree;
+        private final ObjectId[] parents;
+        private final int commitTime;
+        int generation;
+
+        Commit(ObjectId id, ObjectId tree, ObjectId[] parents, int commitTime, int generation) {
+            this.id = id;
+            this.tree = tree;
+            this.parents = parents;
+            this.commitTime = commitTime;
+            this.generation = generation;
+        }
+
+        static Commit parse(AnyObjectId id, byte[] raw) {
+            RevCommit c = RevCommit.parse(raw);
+            ObjectId[] parents = new ObjectId[c.getParentCount()];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = c.getParent(i).copy();
+            }
+            return new Commit(id.copy(), c.getTree().copy(), parents, c.getCommitTime(), GENERATION_UNKNOWN);
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public ObjectId getTree() {
+            return tree;
+        }
+
+        public ObjectId[] getParents() {
+            return parents;
+        }
+
+        public int getCommitTime() {
+            return commitTime;
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
+        // A commit object with this commit's tree, parents and committer
+        // time, and nothing else, for a RevWalk to parse.
+        byte[] headers() {
+            StringBuilder raw = new StringBuilder();
+            raw.append("tree ").append(tree.name()).append('\n');
+            for (ObjectId p : parents) {
+                raw.append("parent ").append(p.name()).append('\n');
+            }
+            raw.append("author <> 0 +0000\n");
+            raw.append("committer <> ").append(commitTime).append(" +0000\n\n");
+            return Constants.encodeASCII(raw.toString());
+        }
+
+        void bind(PreparedStatement statement, int network) throws SQLException {
+            byte[] packed = new byte[parents.length * Constants.OBJECT_ID_LENGTH];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i].copyRawTo(packed, i * Constants.OBJECT_ID_LENGTH);
+            }
+
+            statement.setInt(1, network);
+            statement.setBytes(2, GitSqlObjectDatabase.raw(id));
+            statement.setBytes(3, GitSqlObjectDatabase.raw(tree));
+            statement.setBytes(4, packed);
+            statement.setInt(5, commitTime);
+            statement.setInt(6, generation);
+        }
+
+        static Commit read(ResultSet results) throws SQLException {
+            byte[] packed = results.getBytes("parents");
+            ObjectId[] parents = new ObjectId[packed.length / Constants.OBJECT_ID_LENGTH];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = ObjectId.fromRaw(packed, i * Constants.OBJECT_ID_LENGTH);
+            }
+            return new Commit(
+                    ObjectId.fromRaw(results.getBytes("hash")),
+                    ObjectId.fromRaw(results.getBytes("tree")),
+                    parents,
+                    results.getInt("commit_time"),
+                    results.getInt("generation")
+            );
+        }
+    }
+
+    public Map<ObjectId, Commit> lookup(Collection<? extends AnyObjectId> ids) throws IOException {
+        Map<ObjectId, Commit> found = new HashMap<>();
+        List<AnyObjectId> chunk = new ArrayList<>();
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            for (AnyObjectId id : ids) {
+                chunk.add(id);
+                if (chunk.size() >= parent.getOptions().getBulkChunkSize()) {
+                    lookup(connection, parent.getNetwork(), chunk, found);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                lookup(connection, parent.getNetwork(), chunk, found);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return found;
+    }
+
+    static void lookup(Connection connection, int network, List<? extends AnyObjectId> chunk,
+                       Map<ObjectId, Commit> found) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT `hash`, `tree`, `parents`, `commit_time`, `generation` FROM `git.commits`" +
+                        " WHERE `network` = ? AND `hash` IN " + GitSqlObjectDatabase.placeholders(chunk.size())
+        )) {
+            statement.setInt(1, network);
+            for (int i = 0; i < chunk.size(); i++) {
+                statement.setBytes(i + 2, GitSqlObjectDatabase.raw(chunk.get(i)));
+            }
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    Commit c = Commit.read(results);
+                    found.put(c.id, c);
+                }
+            }
+        }
+    }
+
+    // Commits reachable from the tips, newest commit time first, as a
+    // RevWalk with its default sort would produce them.
+    public List<Commit> walk(Collection<? extends AnyObjectId> tips, int limit) throws IOException {
+        List<Commit> out = new ArrayList<>();
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            Window window = new Window(true);
+            PriorityQueue<Commit> queue = new PriorityQueue<>(
+                    (a, b) -> Integer.compare(b.commitTime, a.commitTime));
+            Set<ObjectId> seen = new HashSet<>();
+
+            List<ObjectId> next = new ArrayList<>();
+            for (AnyObjectId tip : tips) {
+                if (seen.add(tip.copy())) {
+                    next.add(tip.copy());
+                }
+            }
+
+            while (limit <= 0 || out.size() < limit) {
+                queue.addAll(window.get(connection, next));
+                next.clear();
+
+                Commit c = queue.poll();
+                if (c == null) {
+                    break;
+                }
+                out.add(c);
+                for (ObjectId p : c.parents) {
+                    if (seen.add(p)) {
+                        next.add(p);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return out;
+    }
+
+    // Generation numbers let the search stop at commits that are too old to
+    // reach the candidate ancestor.
+    public boolean isAncestor(AnyObjectId ancestor, AnyObjectId tip) throws IOException {
+        return Boolean.TRUE.equals(reaches(ancestor, tip));
+    }
+
+    // As isAncestor(), but null when the table can't tell because a commit
+    // on the way has no row, so callers can fall back to parsing objects.
+    Boolean reaches(AnyObjectId ancestor, AnyObjectId tip) throws IOException {
+        if (AnyObjectId.equals(ancestor, tip)) {
+            return true;
+        }
+
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            Window window = new Window(false);
+            List<Commit> target = window.get(connection, Collections.singletonList(ancestor.copy()));
+            if (target.isEmpty()) {
+                return null;
+            }
+            int floor = target.get(0).generation;
+
+            Set<ObjectId> seen = new HashSet<>();
+            List<ObjectId> frontier = new ArrayList<>();
+            frontier.add(tip.copy());
+            seen.add(tip.copy());
+            while (!frontier.isEmpty()) {
+                List<Commit> found = window.get(connection, frontier);
+                if (found.size() < frontier.size()) {
+                    return null;
+                }
+
+                List<ObjectId> next = new ArrayList<>();
+                for (Commit c : found) {
+                    if (floor != GENERATION_UNKNOWN && c.generation != GENERATION_UNKNOWN
+                            && c.generation <= floor) {
+                        continue;
+                    }
+                    for (ObjectId p : c.parents) {
+                        if (AnyObjectId.equals(p, ancestor)) {
+                            return true;
+                        }
+                        if (seen.add(p)) {
+                            next.add(p);
+                        }
+                    }
+                }
+                frontier = next;
+            }
+            return false;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // A RevWalk that takes each commit's tree, parents and commit time from
+    // the table rather than parsing the commit, for as long as it does not
+    // retain bodies, which it doesn't by default. Bodies asked for with
+    // parseBody() still come from the objects, as do commits without a row.
+    // isMergedInto() is answered from the table outright. The reader is not
+    // closed with the walk.
+    public RevWalk newRevWalk(ObjectReader reader) {
+        HeaderReader headers = new HeaderReader(reader);
+        RevWalk walk = new RevWalk(headers) {
+            // Only the walk itself parses headers through next(); anything
+            // else sharing its reader, like a PackWriter, gets real objects.
+            @Override
+            public RevCommit next() throws IOException {
+                boolean walking = headers.walking;
+                headers.walking = !isRetainBody();
+                try {
+                    return super.next();
+                } finally {
+                    headers.walking = walking;
+                }
+            }
+
+            @Override
+            public boolean isMergedInto(RevCommit base, RevCommit tip) throws IOException {
+                Boolean known = reaches(base, tip);
+                return known != null ? known : super.isMergedInto(base, tip);
+            }
+        };
+        walk.setRetainBody(false);
+        return walk;
+    }
+
+    // Serves commits a walk parses as headers made up from their rows, each
+    // one once: a second open() of the same commit, which is parseBody()
+    // asking for the body, goes to the objects. Inserter readers are passed
+    // through, since what they have pending has no rows yet.
+    private class HeaderReader extends ObjectReader.Filter {
+        private final ObjectReader delegate;
+        private final Window window = new Window(true);
+        private final Set<ObjectId> served = new HashSet<>();
+        boolean walking;
+
+        HeaderReader(ObjectReader delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected ObjectReader delegate() {
+            return delegate;
+        }
+
+        @Override
+        public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
+            if (walking && typeHint == Constants.OBJ_COMMIT && delegate.getCreatedFromInserter() == null
+                    && !served.contains(objectId)) {
+                List<Commit> found;
+                try (Connection connection = parent.getDataSource().getConnection()) {
+                    found = window.get(connection, Collections.singletonList(objectId.copy()));
+                } catch (SQLException e) {
+                    throw new IOException(e);
+                }
+                if (!found.isEmpty()) {
+                    served.add(objectId.copy());
+                    return new ObjectLoader.SmallObject(Constants.OBJ_COMMIT, found.get(0).headers());
+                }
+            }
+            return delegate.open(objectId, typeHint);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Loads commits by id. A prefetching window fills each query up with the
+    // parents of what it already holds that it doesn't hold yet, which are
+    // the commits a walk asks for next, so a walk down many branches costs a
+    // query per bulkChunkSize commits rather than one per commit.
+    private class Window {
+        private final boolean prefetch;
+        private final Map<ObjectId, Commit> cache = new HashMap<>();
+        private final Set<ObjectId> absent = new HashSet<>();
+        private final Set<ObjectId> frontier = new LinkedHashSet<>();
+
+        Window(boolean prefetch) {
+            this.prefetch = prefetch;
+        }
+
+        List<Commit> get(Connection connection, List<ObjectId> ids) throws SQLException {
+            Set<ObjectId> missing = new LinkedHashSet<>();
+            for (ObjectId id : ids) {
+                if (!cache.containsKey(id) && !absent.contains(id)) {
+                    missing.add(id);
+                }
+            }
+
+            int chunkSize = parent.getOptions().getBulkChunkSize();
+            Iterator<ObjectId> it = missing.iterator();
+            while (it.hasNext()) {
+                Set<ObjectId> chunk = new LinkedHashSet<>();
+                while (it.hasNext() && chunk.size() < chunkSize) {
+                    chunk.add(it.next());
+                }
+                if (prefetch) {
+                    for (ObjectId id : frontier) {
+                        if (chunk.size() >= chunkSize) {
+                            break;
+                        }
+                        chunk.add(id);
+                    }
+                }
+
+                Map<ObjectId, Commit> found = new HashMap<>();
+                lookup(connection, parent.getNetwork(), new ArrayList<>(chunk), found);
+                for (ObjectId id : chunk) {
+                    frontier.remove(id);
+                    if (!found.containsKey(id)) {
+                        absent.add(id);
+                    }
+                }
+                cache.putAll(found);
+                if (prefetch) {
+                    for (Commit c : found.values()) {
+                        for (ObjectId p : c.parents) {
+                            if (!cache.containsKey(p) && !absent.contains(p)) {
+                                frontier.add(p);
+                            }
+                        }
+                    }
+                }
+            }
+
+            List<Commit> out = new ArrayList<>(ids.size());
+            for (ObjectId id : ids) {
+                Commit c = cache.get(id);
+                if (c != null) {
+                    out.add(c);
+                }
+            }
+            return out;
+        }
+    }
+
+    // Resolves as many unknown generations as the given commits and the
+    // table allow. Commits whose ancestry leaves the store stay unknown.
+    static void assignGenerations(Connection connection, int network, Map<ObjectId, Commit> commits, int chunkSize)
+            throws SQLException {
+        Set<ObjectId> outside = new HashSet<>();
+        for (Commit c : commits.values()) {
+            for (ObjectId p : c.parents) {
+                if (!commits.containsKey(p)) {
+                    outside.add(p);
+                }
+            }
+        }
+
+        Map<ObjectId, Commit> known = new HashMap<>();
+        List<ObjectId> ids = new ArrayList<>(outside);
+        for (int i = 0; i < ids.size(); i += chunkSize) {
+            lookup(connection, network, ids.subList(i, Math.min(ids.size(), i + chunkSize)), known);
+        }
+
+        Map<ObjectId, Integer> generations = new HashMap<>();
+        for (Commit c : known.values()) {
+            generations.put(c.id, c.generation);
+        }
+
+        // Iterative post-order walk; histories are far too deep to recurse.
+        for (Commit start : commits.values()) {
+            if (generations.containsKey(start.id)) {
+                continue;
+            }
+
+            Deque<Commit> stack = new ArrayDeque<>();
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                Commit c = stack.peek();
+                boolean ready = true;
+                int max = 0;
+                for (ObjectId p : c.parents) {
+                    Integer g = generations.get(p);
+                    if (g == null) {
+                        Commit pc = commits.get(p);
+                        if (pc == null) {
+                            g = GENERATION_UNKNOWN;
+                            generations.put(p, g);
+                        } else {
+                            stack.push(pc);
+                            ready = false;
+                            continue;
+                        }
+                    }
+                    if (g == GENERATION_UNKNOWN) {
+                        max = -1;
+                    } else if (max >= 0) {
+                        max = Math.max(max, g);
+                    }
+                }
+                if (!ready) {
+                    continue;
+                }
+
+                stack.pop();
+                c.generation = max < 0 ? GENERATION_UNKNOWN : max + 1;
+                generations.put(c.id, c.generation);
+            }
+        }
+    }
+
+    // Repopulates the graph from the commit objects themselves, for stores
+    // written before the graph existed. Commits are read a page of ids at a
+    // time, in hash order, so no list of the whole network is ever held.
+    public void rebuild() throws IOException {
+        int chunkSize = parent.getOptions().getBulkChunkSize();
+        try (ObjectReader reader = parent.newObjectReader()) {
+            for (DataSource shard : parent.getShards().getShards()) {
+                byte[] after = new byte[Constants.OBJECT_ID_LENGTH];
+                List<ObjectId> ids;
+                do {
+                    ids = commitIds(shard, after, chunkSize);
+                    if (!ids.isEmpty()) {
+                        after = GitSqlObjectDatabase.raw(ids.get(ids.size() - 1));
+                        store(reader, ids, chunkSize);
+                    }
+                } while (ids.size() == chunkSize);
+            }
+        }
+        updateGenerations();
+    }
+
+    private List<ObjectId> commitIds(DataSource shard, byte[] after, int count) throws IOException {
+        List<ObjectId> ids = new ArrayList<>();
+        try (Connection connection = shard.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT `hash` FROM `git.objects` WHERE `network` = ? AND `hash` > ? AND `type` = ?" +
+                             " ORDER BY `hash` LIMIT ?"
+             )) {
+            statement.setInt(1, parent.getNetwork());
+            statement.setBytes(2, after);
+            statement.setInt(3, Constants.OBJ_COMMIT);
+            statement.setInt(4, count);
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    ids.add(ObjectId.fromRaw(results.getBytes("hash")));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return ids;
+    }
+
+    private void store(ObjectReader reader, List<ObjectId> ids, int chunkSize) throws IOException {
+        Map<ObjectId, Commit> commits = new LinkedHashMap<>();
+        AsyncObjectLoaderQueue<ObjectId> queue = reader.open(ids, true);
+        while (queue.next()) {
+            byte[] raw = queue.open().getCachedBytes(Integer.MAX_VALUE);
+            commits.put(queue.getObjectId(), Commit.parse(queue.getObjectId(), raw));
+        }
+
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            assignGenerations(connection, parent.getNetwork(), commits, chunkSize);
+            try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+                for (Commit c : commits.values()) {
+                    c.bind(insert, parent.getNetwork());
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Pages through the commits of unknown generation oldest first, which
+    // nearly always puts parents before their children, so one pass
+    // resolves almost everything a page at a time. Passes repeat for as long
+    // as they resolve anything, to get past commits dated before a parent.
+    public int updateGenerations() throws IOException {
+        int chunkSize = parent.getOptions().getBulkChunkSize();
+        int updated = 0;
+        try (Connection connection = parent.getDataSource().getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT `hash`, `tree`, `parents`, `commit_time`, `generation` FROM `git.commits`" +
+                             " WHERE `network` = ? AND `generation` = 0" +
+                             " AND (`commit_time` > ? OR (`commit_time` = ? AND `hash` > ?))" +
+                             " ORDER BY `commit_time`, `hash` LIMIT ?"
+             );
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE `git.commits` SET `generation` = ? WHERE `network` = ? AND `hash` = ?"
+             )) {
+            int resolved;
+            do {
+                resolved = 0;
+                int time = Integer.MIN_VALUE;
+                byte[] after = new byte[Constants.OBJECT_ID_LENGTH];
+                int rows;
+                do {
+                    Map<ObjectId, Commit> unknown = new LinkedHashMap<>();
+                    select.setInt(1, parent.getNetwork());
+                    select.setInt(2, time);
+                    select.setInt(3, time);
+                    select.setBytes(4, after);
+                    select.setInt(5, chunkSize);
+                    try (ResultSet results = select.executeQuery()) {
+                        while (results.next()) {
+                            Commit c = Commit.read(results);
+                            unknown.put(c.id, c);
+                            time = c.commitTime;
+                            after = GitSqlObjectDatabase.raw(c.id);
+                        }
+                    }
+                    rows = unknown.size();
+
+                    assignGenerations(connection, parent.getNetwork(), unknown, chunkSize);
+                    for (Commit c : unknown.values()) {
+                        if (c.generation == GENERATION_UNKNOWN) {
+                            continue;
+                        }
+                        update.setInt(1, c.generation);
+                        update.setInt(2, parent.getNetwork());
+                        update.setBytes(3, GitSqlObjectDatabase.raw(c.id));
+                        update.addBatch();
+                        resolved++;
+                    }
+                    update.executeBatch();
+                } while (rows == chunkSize);
+                updated += resolved;
+            } while (resolved > 0);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return updated;
+    }
+}
@@ -0,0 +1,200 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.BaseRepositoryBuilder;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Many repositories in one set of tables, over one connection pool and one
+// object cache. `git.repositories` maps names to ids; refs and reflog rows
+// carry the repository id, objects and the rows derived from them carry a
+// network id. A repository starts a network of its own, and its forks
+// either join that network, so objects pushed to any of them are stored
+// once, or get a copy under a network of their own. Members of a network
+// can read each other's objects.
+public class GitSqlHost implements AutoCloseable {
+    private final DataSource dataSource;
+    private final SqlConnectionPool ownedPool;
+    private final GitSqlOptions options;
+    private final SqlObjectCache objectCache;
+    private final Map<Integer, AtomicReference<SqlObjectFilter>> objectFilters = new ConcurrentHashMap<>();
+
+    public GitSqlHost(String url, Properties properties, GitSqlOptions options) {
+        this(new SqlConnectionPool(url, properties, options.getMaxConnections())
+                        .setCheckoutTimeout(options.getConnectionTimeout())
+                        .setStatementCacheSize(options.getStatementCacheSize()),
+                true, options);
+    }
+
+    public GitSqlHost(DataSource dataSource, GitSqlOptions options) {
+        this(dataSource, false, options);
+    }
+
+    private GitSqlHost(DataSource dataSource, boolean owned, GitSqlOptions options) {
+        this.dataSource = dataSource;
+        this.ownedPool = owned ? (SqlConnectionPool) dataSource : null;
+        this.options = options;
+        this.objectCache = new SqlObjectCache(options.getObjectCacheLimit());
+    }
+
+    private static void createTable(Connection connection) throws SQLException {
+        try (Statement creates = connection.createStatement()) {
+            creates.execute(
+                    "CREATE TABLE IF NOT EXISTS `git.repositories` (\n" +
+                            "  `id` INT UNSIGNED NOT NULL AUTO_INCREMENT COMMENT 'Repository' PRIMARY KEY,\n" +
+                            "  `name` VARCHAR(255) NOT NULL COMMENT 'Repository Name',\n" +
+                            "  `network` INT UNSIGNED NOT NULL COMMENT 'Object Network',\n" +
+                            "  `parent` INT UNSIGNED NULL COMMENT 'Forked From',\n" +
+                            "  UNIQUE KEY `name` (`name`),\n" +
+                            "  KEY `network` (`network`)\n" +
+                            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Repositories'"
+            );
+        }
+    }
+
+    public GitSqlRepository create(String name) throws IOException {
+        Entry entry = register(name, null, null);
+        GitSqlRepository repository = open(entry);
+        repository.create(true);
+        return repository;
+    }
+
+    public GitSqlRepository open(String name) throws IOException {
+        return open(lookup(name));
+    }
+
+    // The fork starts out with the source's refs. Its objects are the
+    // source's network when fork sharing is on, and a copy otherwise.
+    public GitSqlRepository fork(String source, String name) throws IOException {
+        Entry from = lookup(source);
+        Entry entry = register(name, options.isForkSharing() ? from.network : null, from.id);
+        GitSqlRepository repository = open(entry);
+        try {
+            if (entry.network != from.network) {
+                ((GitSqlObjectDatabase) repository.getObjectDatabase()).copyFrom(from.network);
+            }
+            ((GitSqlRefDatabase) repository.getRefDatabase()).copyFrom(from.id);
+        } catch (IOException e) {
+            repository.close();
+            throw e;
+        }
+        return repository;
+    }
+
+    private GitSqlRepository open(Entry entry) {
+        return new GitSqlRepository(this, entry.id, entry.network, new BaseRepositoryBuilder<>());
+    }
+
+    private Entry lookup(String name) throws IOException {
+        try (Connection connection = dataSource.getConnection()) {
+            if (!SqlSchema.tableExists(connection, "git.repositories")) {
+                throw new RepositoryNotFoundException(name);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT `id`, `network` FROM `git.repositories` WHERE `name` = ?"
+            )) {
+                statement.setString(1, name);
+                try (ResultSet results = statement.executeQuery()) {
+                    if (!results.next()) {
+                        throw new RepositoryNotFoundException(name);
+                    }
+                    return new Entry(results.getInt("id"), results.getInt("network"));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // A repository without a network of its own joins a network keyed by
+    // its own id, which is only known once the row is in.
+    private Entry register(String name, Integer network, Integer parent) throws IOException {
+        try (Connection connection = dataSource.getConnection()) {
+            createTable(connection);
+            connection.setAutoCommit(false);
+
+            int id;
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO `git.repositories` (`name`, `network`, `parent`) VALUES (?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS
+            )) {
+                insert.setString(1, name);
+                insert.setInt(2, network != null ? network : 0);
+                if (parent != null) {
+                    insert.setInt(3, parent);
+                } else {
+                    insert.setNull(3, Types.INTEGER);
+                }
+                insert.executeUpdate();
+                try (ResultSet keys = insert.getGeneratedKeys()) {
+                    keys.next();
+                    id = keys.getInt(1);
+                }
+            } catch (SQLIntegrityConstraintViolationException e) {
+                throw new IOException("Repository already exists: " + name, e);
+            }
+
+            if (network == null) {
+                network = id;
+                try (PreparedStatement update = connection.prepareStatement(
+                        "UPDATE `git.repositories` SET `network` = ? WHERE `id` = ?"
+                )) {
+                    update.setInt(1, network);
+                    update.setInt(2, id);
+                    update.executeUpdate();
+                }
+            }
+            connection.commit();
+            return new Entry(id, network);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownedPool != null) {
+            ownedPool.close();
+        }
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public GitSqlOptions getOptions() {
+        return options;
+    }
+
+    public SqlObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    // One membership filter per network, shared by every repository opened
+    // on it, so an object written through one is never ruled out by another.
+    AtomicReference<SqlObjectFilter> getObjectFilter(int network) {
+        return objectFilters.computeIfAbsent(network, n -> new AtomicReference<>());
+    }
+
+    private static class Entry {
+        final int id;
+        final int network;
+
+        Entry(int id, int network) {
+            this.id = id;
+            this.network = network;
+        }
+    }
+}
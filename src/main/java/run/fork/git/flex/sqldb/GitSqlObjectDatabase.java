@@ -1,279 +1,713 @@
 package run.fork.git.flex.sqldb;
 
+import org.eclipse.jgit.errors.CorruptObjectException;
 import org.eclipse.jgit.errors.LargeObjectException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.internal.storage.file.ObjectDirectoryPackParser;
+import org.eclipse.jgit.errors.StoredObjectRepresentationNotAvailableException;
+import org.eclipse.jgit.internal.storage.pack.BinaryDelta;
+import org.eclipse.jgit.internal.storage.pack.CachedPack;
+import org.eclipse.jgit.internal.storage.pack.DeltaIndex;
+import org.eclipse.jgit.internal.storage.pack.ObjectReuseAsIs;
+import org.eclipse.jgit.internal.storage.pack.ObjectToPack;
+import org.eclipse.jgit.internal.storage.pack.PackOutputStream;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.util.IO;
 import org.eclipse.jgit.util.sha1.SHA1;
 
-import javax.swing.plaf.nimbus.State;
+import javax.sql.DataSource;
 import java.io.*;
 import java.sql.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 public class GitSqlObjectDatabase extends ObjectDatabase {
+    public static final int SCHEMA_VERSION = 8;
+
+    private static final SqlObjectCodec RAW_CODEC = new SqlObjectCodec.Raw();
+
+    private static final int FILTER_PAGE = 65536;
+    private static final ObjectId LAST_ID = ObjectId.fromString("ffffffffffffffffffffffffffffffffffffffff");
+    private static final int STATEMENT_BYTES = 4 * GitSqlOptions.MiB;
+    private static final String INSERT_OBJECTS =
+            "INSERT IGNORE INTO `git.objects` (`network`, `hash`, `type`, `codec`, `size`, `base`, `depth`, `content`) VALUES ";
+    private static final String OBJECT_VALUES = "(?, ?, ?, ?, ?, ?, ?, ?)";
+
     private final GitSqlRepository parent;
+    private final AtomicReference<SqlObjectFilter> filter;
+    private ExecutorService shardWorkers;
 
     public GitSqlObjectDatabase(GitSqlRepository parent) {
         this.parent = parent;
+        this.filter = parent.isHosted()
+                ? parent.getHost().getObjectFilter(parent.getNetwork()) : new AtomicReference<>();
+    }
+
+    public GitSqlOptions getOptions() {
+        return parent.getOptions();
     }
 
     @Override
     public void create() throws IOException {
-        try {
-            try {
-                Statement drop = parent.getConnection().createStatement();
-                drop.execute("DROP TABLE `git.objects`");
-            } catch (SQLException ignored) {
-            }
-
-            Statement creates = parent.getConnection().createStatement();
-            creates.execute(
-              "CREATE TABLE `git.objects` (\n" +
-                      "  `hash` VARCHAR(255) CHARACTER SET ascii COLLATE ascii_bin NOT NULL COMMENT 'Object Hash' PRIMARY KEY,\n" +
-                      "  `type` TINYINT(4) NOT NULL COMMENT 'Object Type',\n" +
-                      "  `content` LONGBLOB NOT NULL COMMENT 'Object Content'\n" +
-                      ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Objects'"
-            );
-        } catch (SQLException e) {
-            throw new IOException(e);
+        // Hosted repositories share the tables, so only the first one sets
+        // them up.
+        if (parent.isHosted() && exists()) {
+            resetFilter();
+            return;
         }
-    }
 
-    @Override
-    public boolean exists() {
-        try {
-            DatabaseMetaData dbm = parent.getConnection().getMetaData();
-            ResultSet tables = dbm.getTables(null, null, "git.objects", null);
-            if (!tables.next()) {
-                tables.close();
-                return false;
+        // Objects live on the shards, everything else on the repository's
+        // own data source.
+        for (DataSource shard : new LinkedHashSet<>(parent.getShards().getShards())) {
+            try (Connection connection = shard.getConnection();
+                 Statement drop = connection.createStatement()) {
+                drop.execute("DROP TABLE IF EXISTS `git.objects`");
+                createObjectsTable(connection, "git.objects");
+            } catch (SQLException e) {
+                throw new IOException(e);
             }
+        }
 
-            tables.close();
-            return true;
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            try (Statement drop = connection.createStatement()) {
+                drop.execute("DROP TABLE IF EXISTS `git.commits`, `git.trees`, `git.paths`");
+                if (!parent.getShards().getShards().contains(parent.getDataSource())) {
+                    drop.execute("DROP TABLE IF EXISTS `git.objects`");
+                }
+            }
+
+            GitSqlCommitGraph.createTable(connection);
+            GitSqlPathIndex.createTables(connection);
+            SqlSchema.setVersion(connection, SqlSchema.OBJECTS, SCHEMA_VERSION);
         } catch (SQLException e) {
-            throw new RuntimeException(e);
+            throw new IOException(e);
         }
+        resetFilter();
     }
 
-    @Override
-    public ObjectInserter newInserter() {
-        return new SqlObjectInserter();
-    }
-
-    @Override
-    public ObjectReader newReader() {
-        return new SqlObjectReader();
+    private void createObjectsTable(Connection connection, String name) throws SQLException {
+        Statement creates = connection.createStatement();
+        creates.execute(
+          "CREATE TABLE IF NOT EXISTS `" + name + "` (\n" +
+                  "  `network` INT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Object Network',\n" +
+                  "  `hash` BINARY(20) NOT NULL COMMENT 'Object Hash',\n" +
+                  "  `type` TINYINT(4) NOT NULL COMMENT 'Object Type',\n" +
+                  "  `codec` TINYINT(4) NOT NULL DEFAULT 0 COMMENT 'Content Codec',\n" +
+                  "  `size` BIGINT NOT NULL COMMENT 'Inflated Object Size',\n" +
+                  "  `base` BINARY(20) NULL COMMENT 'Delta Base Hash',\n" +
+                  "  `depth` TINYINT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Delta Chain Depth',\n" +
+                  "  `content` LONGBLOB NOT NULL COMMENT 'Object Content',\n" +
+                  "  PRIMARY KEY (`network`, `hash`)\n" +
+                  ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Objects'"
+        );
+        creates.close();
     }
 
     @Override
-    public void close() {
-        try {
-            parent.getConnection().close();
+    public boolean exists() {
+        try (Connection connection = parent.getShards().get(0).getConnection()) {
+            return SqlSchema.tableExists(connection, "git.objects");
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public class SqlObjectReader extends ObjectReader {
-        @Override
-        public ObjectReader newReader() {
-            return new SqlObjectReader();
+    public int getSchemaVersion() throws IOException {
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            return SqlSchema.getVersion(connection, SqlSchema.OBJECTS);
+        } catch (SQLException e) {
+            throw new IOException(e);
         }
+    }
 
-        @Override
-        public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
-            try {
-                PreparedStatement statement = parent.getConnection().prepareStatement(
-                        "SELECT `hash` FROM `git.objects` WHERE `hash` LIKE ?"
+    // Migrates the objects on the repository's own data source only; a
+    // sharded store is created at the current version.
+    public void upgrade() throws IOException {
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            if (SqlSchema.getVersion(connection, SqlSchema.OBJECTS) < 2) {
+                // Version 1 keyed rows by hex VARCHAR and, before the header
+                // fix, stored the loose object header in front of the content.
+                // Rows are copied one hash prefix at a time so a failed
+                // migration can simply be re-run.
+                Statement creates = connection.createStatement();
+                creates.execute(
+                        "CREATE TABLE IF NOT EXISTS `git.objects.v2` (\n" +
+                                "  `hash` BINARY(20) NOT NULL COMMENT 'Object Hash' PRIMARY KEY,\n" +
+                                "  `type` TINYINT(4) NOT NULL COMMENT 'Object Type',\n" +
+                                "  `content` LONGBLOB NOT NULL COMMENT 'Object Content'\n" +
+                                ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Objects'"
                 );
-                statement.setString(1, id.name() + "%");
-                ArrayList<ObjectId> ids = new ArrayList<>();
-                ResultSet results = statement.executeQuery();
+                creates.close();
 
-                while (results.next()) {
-                    String oid = results.getString(0);
-                    ids.add(ObjectId.fromString(oid));
+                PreparedStatement copy = connection.prepareStatement(
+                        "INSERT IGNORE INTO `git.objects.v2` (`hash`, `type`, `content`)" +
+                                " SELECT UNHEX(`hash`), `type`," +
+                                " IF(LOCATE(0x00, `content`) > 0 AND SUBSTRING(`content`, 1, LOCATE(0x00, `content`) - 1) =" +
+                                " CONCAT(ELT(`type`, 'commit', 'tree', 'blob', 'tag'), ' ', LENGTH(`content`) - LOCATE(0x00, `content`))," +
+                                " SUBSTRING(`content`, LOCATE(0x00, `content`) + 1), `content`)" +
+                                " FROM `git.objects` WHERE `hash` LIKE ?"
+                );
+                for (int prefix = 0; prefix < 256; prefix++) {
+                    copy.setString(1, String.format("%02x%%", prefix));
+                    copy.executeUpdate();
                 }
-                return ids;
+                copy.close();
+
+                Statement swap = connection.createStatement();
+                swap.execute("RENAME TABLE `git.objects` TO `git.objects.v1`, `git.objects.v2` TO `git.objects`");
+                swap.execute("DROP TABLE `git.objects.v1`");
+                swap.close();
+
+                SqlSchema.setVersion(connection, SqlSchema.OBJECTS, 2);
+                parent.getObjectCache().clear();
+                resetFilter();
+            }
+
+            if (SqlSchema.getVersion(connection, SqlSchema.OBJECTS) < 3) {
+                // Existing rows keep the raw codec; only their size is filled in.
+                Statement alter = connection.createStatement();
+                alter.execute(
+                        "ALTER TABLE `git.objects`" +
+                                " ADD COLUMN `codec` TINYINT(4) NOT NULL DEFAULT 0 COMMENT 'Content Codec' AFTER `type`," +
+                                " ADD COLUMN `size` BIGINT NOT NULL DEFAULT 0 COMMENT 'Inflated Object Size' AFTER `codec`"
+                );
+                alter.close();
+
+                PreparedStatement sizes = connection.prepareStatement(
+                        "UPDATE `git.objects` SET `size` = LENGTH(`content`) WHERE `hash` BETWEEN ? AND ?"
+                );
+                eachPrefix(ObjectId.zeroId(), LAST_ID, (shard, lo, hi) -> {
+                    sizes.setBytes(1, lo);
+                    sizes.setBytes(2, hi);
+                    sizes.executeUpdate();
+                });
+                sizes.close();
+
+                SqlSchema.setVersion(connection, SqlSchema.OBJECTS, 3);
+            }
+
+            if (SqlSchema.getVersion(connection, SqlSchema.OBJECTS) < 4) {
+                Statement alter = connection.createStatement();
+                alter.execute(
+                        "ALTER TABLE `git.objects`" +
+                                " ADD COLUMN `base` BINARY(20) NULL COMMENT 'Delta Base Hash' AFTER `size`," +
+                                " ADD COLUMN `depth` TINYINT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Delta Chain Depth' AFTER `base`"
+                );
+                alter.close();
+
+                SqlSchema.setVersion(connection, SqlSchema.OBJECTS, 4);
+            }
+
+            if (SqlSchema.getVersion(connection, SqlSchema.OBJECTS) < 5) {
+                // The backfill reads commits by network, so the column that
+                // version 7 adds has to be there already.
+                addNetwork(connection, "git.objects", "`network`, `hash`", null);
+                GitSqlCommitGraph.createTable(connection);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+        // The backfill reads commits through a reader, so it runs after the
+        // migration's connection has gone back to the pool.
+        if (getSchemaVersion() < 5) {
+            parent.getCommitGraph().rebuild();
+            try (Connection connection = parent.getDataSource().getConnection()) {
+                SqlSchema.setVersion(connection, SqlSchema.OBJECTS, 5);
             } catch (SQLException e) {
                 throw new IOException(e);
             }
         }
 
-        @Override
-        public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
-            SqlObjectLoader loader = new SqlObjectLoader(objectId, typeHint);
-            loader.loadCache();
-            return loader;
+        if (getSchemaVersion() < 6) {
+            // The path index starts out empty; GitSqlPathIndex.update()
+            // fills it in when it is turned on.
+            try (Connection connection = parent.getDataSource().getConnection()) {
+                GitSqlPathIndex.createTables(connection);
+                SqlSchema.setVersion(connection, SqlSchema.OBJECTS, 6);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
         }
 
-        @Override
-        public Set<ObjectId> getShallowCommits() throws IOException {
-            return null;
+        if (getSchemaVersion() < 7) {
+            // Existing rows become network 0, the network of a repository
+            // that has the tables to itself. Tables created by the steps
+            // above already have the column.
+            try (Connection connection = parent.getDataSource().getConnection()) {
+                addNetwork(connection, "git.objects", "`network`, `hash`", null);
+                addNetwork(connection, "git.commits", "`network`, `hash`",
+                        "DROP KEY `generation`, ADD KEY `generation` (`network`, `generation`)");
+                addNetwork(connection, "git.trees", "`network`, `tree`, `name`", null);
+                addNetwork(connection, "git.paths", "`network`, `commit`, `path`",
+                        "DROP KEY `path`, ADD KEY `path` (`network`, `path`(255))");
+                SqlSchema.setVersion(connection, SqlSchema.OBJECTS, 7);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
         }
 
-        @Override
-        public void close() {
+        if (getSchemaVersion() < 8) {
+            // updateGenerations() pages unknown rows by commit time.
+            try (Connection connection = parent.getDataSource().getConnection();
+                 Statement alter = connection.createStatement()) {
+                alter.execute("ALTER TABLE `git.commits` DROP KEY `generation`," +
+                        " ADD KEY `generation` (`network`, `generation`, `commit_time`)");
+                SqlSchema.setVersion(connection, SqlSchema.OBJECTS, 8);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
         }
     }
 
-    public class SqlObjectLoader extends ObjectLoader {
-        private final AnyObjectId objectId;
-        private final int typeHint;
+    private static void addNetwork(Connection connection, String table, String primaryKey, String keys)
+            throws SQLException {
+        if (SqlSchema.columnExists(connection, table, "network")) {
+            return;
+        }
+        try (Statement alter = connection.createStatement()) {
+            alter.execute(
+                    "ALTER TABLE `" + table + "`" +
+                            " ADD COLUMN `network` INT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Object Network' FIRST," +
+                            " DROP PRIMARY KEY, ADD PRIMARY KEY (" + primaryKey + ")" +
+                            (keys != null ? ", " + keys : "")
+            );
+        }
+    }
+
+    // Copies another network's objects and the rows derived from them into
+    // this one, for a fork that does not share its parent's network. Rows
+    // go one hash prefix at a time, and a failed copy can simply be re-run.
+    void copyFrom(int network) throws IOException {
+        SqlShardMap shards = parent.getShards();
+        for (int s = 0; s < shards.size(); s++) {
+            int owner = s;
+            try (Connection connection = shards.get(s).getConnection();
+                 PreparedStatement copy = connection.prepareStatement(
+                         "INSERT IGNORE INTO `git.objects`" +
+                                 " (`network`, `hash`, `type`, `codec`, `size`, `base`, `depth`, `content`)" +
+                                 " SELECT ?, `hash`, `type`, `codec`, `size`, `base`, `depth`, `content`" +
+                                 " FROM `git.objects` WHERE `network` = ? AND `hash` BETWEEN ? AND ?"
+                 )) {
+                eachPrefix(ObjectId.zeroId(), LAST_ID, (shard, lo, hi) -> {
+                    if (shard != owner) {
+                        return;
+                    }
+                    copy.setInt(1, parent.getNetwork());
+                    copy.setInt(2, network);
+                    copy.setBytes(3, lo);
+                    copy.setBytes(4, hi);
+                    copy.executeUpdate();
+                });
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            String[] copies = {
+                    "INSERT IGNORE INTO `git.commits` (`network`, `hash`, `tree`, `parents`, `commit_time`, `generation`)" +
+                            " SELECT ?, `hash`, `tree`, `parents`, `commit_time`, `generation`" +
+                            " FROM `git.commits` WHERE `network` = ?",
+                    "INSERT IGNORE INTO `git.trees` (`network`, `tree`, `name`, `mode`, `object`)" +
+                            " SELECT ?, `tree`, `name`, `mode`, `object` FROM `git.trees` WHERE `network` = ?",
+                    "INSERT IGNORE INTO `git.paths` (`network`, `commit`, `path`, `mode`, `object`)" +
+                            " SELECT ?, `commit`, `path`, `mode`, `object` FROM `git.paths` WHERE `network` = ?"
+            };
+            for (String sql : copies) {
+                try (PreparedStatement copy = connection.prepareStatement(sql)) {
+                    copy.setInt(1, parent.getNetwork());
+                    copy.setInt(2, network);
+                    copy.executeUpdate();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        resetFilter();
+    }
 
-        private int cachedType;
-        private long cachedSize;
-        private byte[] cachedBlobData;
+    static byte[] raw(AnyObjectId id) {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        id.copyRawTo(raw, 0);
+        return raw;
+    }
 
-        private boolean cacheLoaded = false;
+    static String placeholders(int n) {
+        StringBuilder sql = new StringBuilder(n * 3 + 2).append('(');
+        for (int i = 0; i < n; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').toString();
+    }
 
-        public SqlObjectLoader(AnyObjectId objectId, int typeHint) {
-            this.objectId = objectId;
-            this.typeHint = typeHint;
+    interface PrefixTask {
+        void run(int shard, byte[] lo, byte[] hi) throws SQLException;
+    }
 
-            cachedBlobData = null;
+    // Splits the ids from lo to hi into one range per first byte, and hands
+    // each to the task with the shard that byte routes to. Routes cover
+    // whole first bytes, so no range straddles two shards.
+    void eachPrefix(AnyObjectId lo, AnyObjectId hi, PrefixTask task) throws SQLException {
+        for (int b = lo.getFirstByte(); b <= hi.getFirstByte(); b++) {
+            byte[] from = raw(lo);
+            byte[] to = raw(hi);
+            if (b != lo.getFirstByte()) {
+                Arrays.fill(from, (byte) 0);
+                from[0] = (byte) b;
+            }
+            if (b != hi.getFirstByte()) {
+                Arrays.fill(to, (byte) 0xff);
+                to[0] = (byte) b;
+            }
+            task.run(parent.getShards().shardOf(b), from, to);
         }
+    }
+
+    interface ShardQuery<K, R> {
+        R run(int shard, List<K> ids) throws SQLException, IOException;
+    }
 
-        private void loadCache() throws IOException {
+    // Splits the ids by shard and runs the query once per shard, in parallel
+    // when there is more than one. Each query gets its own part of the ids,
+    // so it can use the shard's connection without sharing it.
+    <K extends AnyObjectId, R> List<R> fanOut(Iterable<K> ids, ShardQuery<K, R> query) throws IOException {
+        Map<Integer, List<K>> parts = parent.getShards().partition(ids);
+        List<R> results = new ArrayList<>(parts.size());
+        if (parts.size() <= 1) {
             try {
-                PreparedStatement statement = parent.getConnection().prepareStatement(
-                        "SELECT `type`, LENGTH(`content`) AS size FROM `git.objects` WHERE `hash` = ?"
-                );
-                statement.setString(1, objectId.name());
-                ResultSet results = statement.executeQuery();
-                if (!results.next()) {
-                    throw new MissingObjectException(objectId.toObjectId(), typeHint);
+                for (Map.Entry<Integer, List<K>> part : parts.entrySet()) {
+                    results.add(query.run(part.getKey(), part.getValue()));
                 }
-
-                cachedSize = results.getLong("size");
-                cachedType = results.getInt("type");
-                cacheLoaded = true;
-                statement.close();
             } catch (SQLException e) {
                 throw new IOException(e);
             }
+            return results;
         }
 
-        @Override
-        public int getType() {
-            if (!cacheLoaded) {
-                try {
-                    loadCache();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+        List<Future<R>> futures = new ArrayList<>(parts.size());
+        for (Map.Entry<Integer, List<K>> part : parts.entrySet()) {
+            futures.add(shardWorkers().submit(() -> query.run(part.getKey(), part.getValue())));
+        }
+        for (Future<R> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
                 }
+                throw new IOException(e.getCause());
             }
-            return cachedType;
         }
+        return results;
+    }
 
-        @Override
-        public long getSize() {
-            if (!cacheLoaded) {
-                try {
-                    loadCache();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+    private synchronized ExecutorService shardWorkers() {
+        if (shardWorkers == null) {
+            shardWorkers = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "git-sql-shard");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return shardWorkers;
+    }
+
+    public Set<ObjectId> findExisting(Collection<? extends AnyObjectId> ids) throws IOException {
+        try (SqlObjectReader reader = new SqlObjectReader()) {
+            return reader.findExisting(ids);
+        }
+    }
+
+    // The membership filter, loaded on first use and rebuilt at twice the
+    // size once it fills up, or null when it is turned off. Hosted
+    // repositories share their network's filter through the host. It only
+    // learns about objects written through this process, so its misses are
+    // only trusted by the inserter's dedup, where INSERT IGNORE keeps the
+    // row of another writer that got there first; readers always ask the
+    // table. It loads through the inserter's reader, on the connections the
+    // inserter holds, rather than wanting more from a pool that may have no
+    // more to give.
+    SqlObjectFilter filter(SqlObjectReader reader) throws IOException {
+        if (!getOptions().isObjectFilter()) {
+            return null;
+        }
+        SqlObjectFilter current = filter.get();
+        if (current != null && (!current.isReady() || !current.isSaturated())) {
+            return current;
+        }
+
+        SqlObjectFilter fresh;
+        synchronized (filter) {
+            if (filter.get() != current) {
+                return filter.get();
+            }
+            long estimate = current != null ? current.getCount() : estimateObjects(reader);
+            fresh = new SqlObjectFilter(Math.max(FILTER_PAGE, 2 * estimate), getOptions().getObjectFilterBits());
+            // Published before the scan, so inserts that land meanwhile are
+            // added to it rather than lost; it answers nothing until ready.
+            filter.set(fresh);
+        }
+
+        try {
+            loadFilter(fresh, reader);
+        } catch (IOException e) {
+            filter.compareAndSet(fresh, null);
+            throw e;
+        }
+        fresh.setReady();
+        return fresh;
+    }
+
+    private void findExisting(Connection connection, List<? extends AnyObjectId> chunk, Set<ObjectId> found)
+            throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT `hash` FROM `git.objects` WHERE `network` = ? AND `hash` IN " + placeholders(chunk.size())
+        )) {
+            statement.setInt(1, parent.getNetwork());
+            for (int i = 0; i < chunk.size(); i++) {
+                statement.setBytes(i + 2, raw(chunk.get(i)));
+            }
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    found.add(ObjectId.fromRaw(results.getBytes("hash")));
                 }
             }
-            return cachedSize;
         }
+    }
 
-        @Override
-        public byte[] getCachedBytes() throws LargeObjectException {
-            return cachedBlobData;
+    // Writes an inserter's rows, leaving out those already stored: ids the
+    // filter rules out need no probe, the others are looked up in bulk.
+    // INSERT IGNORE covers a concurrent writer getting there in between.
+    private void writeRows(Connection connection, Collection<PendingRow> rows) throws SQLException {
+        int chunkSize = getOptions().getBulkChunkSize();
+        SqlObjectFilter known = filter.get();
+        if (known != null && !known.isReady()) {
+            known = null;
         }
 
-        @Override
-        public ObjectStream openStream() throws IOException {
-            if (cachedBlobData != null) {
-                return new ObjectStream.SmallStream(getType(), getCachedBytes());
+        Set<ObjectId> existing = new HashSet<>();
+        List<ObjectId> probe = new ArrayList<>();
+        for (PendingRow row : rows) {
+            if (known != null && !known.mightContain(row)) {
+                continue;
+            }
+            probe.add(row);
+            if (probe.size() >= chunkSize) {
+                findExisting(connection, probe, existing);
+                probe.clear();
+            }
+        }
+        if (!probe.isEmpty()) {
+            findExisting(connection, probe, existing);
+        }
+
+        // Multi-row statements, bounded in rows and in bytes so a statement
+        // stays well under max_allowed_packet.
+        List<PendingRow> chunk = new ArrayList<>();
+        long bytes = 0;
+        for (PendingRow row : rows) {
+            if (existing.contains(row)) {
+                continue;
+            }
+            if (!chunk.isEmpty() && (chunk.size() >= chunkSize || bytes + row.content.length > STATEMENT_BYTES)) {
+                insertRows(connection, chunk);
+                chunk.clear();
+                bytes = 0;
+            }
+            chunk.add(row);
+            bytes += row.content.length;
+        }
+        if (!chunk.isEmpty()) {
+            insertRows(connection, chunk);
+        }
+
+        // Only added once written, so a filter rebuilt meanwhile cannot miss
+        // them; a filter that is loaded later finds the rows by itself.
+        SqlObjectFilter current = filter.get();
+        if (current != null) {
+            for (PendingRow row : rows) {
+                current.add(row);
+            }
+        }
+    }
+
+    private void insertRows(Connection connection, List<PendingRow> chunk) throws SQLException {
+        StringBuilder sql = new StringBuilder(INSERT_OBJECTS);
+        for (int i = 0; i < chunk.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append(OBJECT_VALUES);
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int p = 1;
+            for (PendingRow row : chunk) {
+                statement.setInt(p++, parent.getNetwork());
+                statement.setBytes(p++, raw(row));
+                statement.setInt(p++, row.type);
+                statement.setInt(p++, row.codec);
+                statement.setLong(p++, row.size);
+                statement.setBytes(p++, row.base);
+                statement.setInt(p++, row.depth);
+                statement.setBytes(p++, row.content);
             }
+            statement.executeUpdate();
+        }
+    }
+
+    public void resetFilter() {
+        synchronized (filter) {
+            filter.set(null);
+        }
+    }
 
+    // The table statistics are free but cover every network; a hosted
+    // repository counts its own network's rows instead, which is a range
+    // of the primary key.
+    private long estimateObjects(SqlObjectReader reader) throws IOException {
+        long estimate = 0;
+        for (int shard = 0; shard < parent.getShards().size(); shard++) {
             try {
-                PreparedStatement statement = parent.getConnection().prepareStatement(
-                        "SELECT `type`, `content` AS size FROM `git.objects` WHERE `hash` = ?"
-                );
-                statement.setString(1, objectId.name());
-                ResultSet results = statement.executeQuery();
-                if (!results.next()) {
-                    throw new MissingObjectException(objectId.toObjectId(), typeHint);
-                }
-
-                Blob blob = results.getBlob("content");
-                byte[] bytes = blob.getBytes(0, (int) blob.length());
-                blob.free();
-                cacheLoaded = true;
-                cachedSize = bytes.length;
-                cachedBlobData = bytes;
-                cachedType = results.getInt("type");
-                statement.close();
-                return new ObjectStream.SmallStream(cachedType, bytes);
+                Connection connection = reader.connect(shard);
+                try (PreparedStatement statement = connection.prepareStatement(parent.isHosted()
+                        ? "SELECT COUNT(*) FROM `git.objects` WHERE `network` = ?"
+                        : "SELECT `table_rows` FROM information_schema.tables" +
+                                " WHERE table_schema = DATABASE() AND table_name = 'git.objects'"
+                )) {
+                    if (parent.isHosted()) {
+                        statement.setInt(1, parent.getNetwork());
+                    }
+                    try (ResultSet results = statement.executeQuery()) {
+                        estimate += results.next() ? results.getLong(1) : 0;
+                    }
+                } finally {
+                    reader.release(connection);
+                }
             } catch (SQLException e) {
                 throw new IOException(e);
             }
         }
+        return estimate;
     }
 
-    public class SqlObjectInserter extends ObjectInserter {
-        private PreparedStatement statement;
+    // Walks the primary key in pages, so neither side ever holds more than
+    // one page of ids. The scan starts after the zero id, which git never
+    // uses for an object.
+    private void loadFilter(SqlObjectFilter fresh, SqlObjectReader reader) throws IOException {
+        for (int shard = 0; shard < parent.getShards().size(); shard++) {
+            try {
+                Connection connection = reader.connect(shard);
+                try {
+                    loadFilter(fresh, connection);
+                } finally {
+                    reader.release(connection);
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
 
-        void writeHeader(OutputStream out, final int type, long len)
-                throws IOException {
-            out.write(Constants.encodedTypeString(type));
-            out.write((byte) ' ');
-            out.write(Constants.encodeASCII(len));
-            out.write((byte) 0);
+    private void loadFilter(SqlObjectFilter fresh, Connection connection) throws SQLException {
+        byte[] after = new byte[Constants.OBJECT_ID_LENGTH];
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT `hash` FROM `git.objects` WHERE `network` = ? AND `hash` > ? ORDER BY `hash` LIMIT ?"
+        )) {
+            int rows;
+            do {
+                rows = 0;
+                statement.setInt(1, parent.getNetwork());
+                statement.setBytes(2, after);
+                statement.setInt(3, FILTER_PAGE);
+                try (ResultSet results = statement.executeQuery()) {
+                    while (results.next()) {
+                        after = results.getBytes("hash");
+                        fresh.add(ObjectId.fromRaw(after));
+                        rows++;
+                    }
+                }
+            } while (rows == FILTER_PAGE);
         }
+    }
 
-        @Override
-        public ObjectId insert(int objectType, long length, InputStream in) throws IOException {
-            try {
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
+    @Override
+    public ObjectInserter newInserter() {
+        return new SqlObjectInserter();
+    }
 
-                SHA1 sha = digest();
-                SHA1OutputStream shaOut = new SHA1OutputStream(out, sha);
+    @Override
+    public ObjectReader newReader() {
+        return new SqlObjectReader();
+    }
 
-                writeHeader(shaOut, objectType, length);
-                {
-                    int nRead;
-                    byte[] data = buffer();
+    @Override
+    public synchronized void close() {
+        if (shardWorkers != null) {
+            shardWorkers.shutdown();
+            shardWorkers = null;
+        }
+    }
 
-                    while ((nRead = in.read(data, 0, data.length)) != -1) {
-                        shaOut.write(data, 0, nRead);
-                    }
-                    shaOut.flush();
-                }
+    // Readers borrow a connection for each lookup and hand it straight back,
+    // so an idle reader never pins one. A reader opened from an inserter
+    // shares the inserter's connection while it holds one, which keeps a
+    // receive-pack session to a single connection.
+    public class SqlObjectReader extends ObjectReader implements ObjectReuseAsIs {
+        private final SqlObjectInserter inserter;
+        private final Map<ObjectId, byte[]> prefetched = new HashMap<>();
+        private Inflater inflater;
+        private Deflater deflater;
 
-                byte[] bytes = out.toByteArray();
-                ObjectId id = sha.toObjectId();
+        SqlObjectReader() {
+            this(null);
+        }
 
-                if (statement == null) {
-                    statement = parent.getConnection().prepareStatement(
-                            "INSERT INTO `git.objects` (`hash`, `type`, `content`) VALUES (?, ?, ?)"
-                    );
-                }
+        SqlObjectReader(SqlObjectInserter inserter) {
+            this.inserter = inserter;
+        }
 
-                statement.setString(1, id.name());
-                statement.setInt(2, objectType);
-                statement.setBlob(3, new ByteArrayInputStream(bytes));
-                statement.addBatch();
-                statement.clearParameters();
-                return id;
-            } catch (SQLException e) {
-                throw new IOException(e);
+        Connection connect(int shard) throws SQLException {
+            if (inserter != null) {
+                Connection held = inserter.held(shard);
+                if (held != null) {
+                    return held;
+                }
             }
+            return parent.getShards().get(shard).getConnection();
         }
 
-        @Override
-        public PackParser newPackParser(InputStream in) throws IOException {
-            return null;
+        Connection connect(AnyObjectId objectId) throws SQLException {
+            return connect(parent.getShards().shardOf(objectId));
+        }
+
+        void release(Connection connection) throws SQLException {
+            if (inserter == null || !inserter.holds(connection)) {
+                connection.close();
+            }
         }
 
         @Override
@@ -282,29 +716,1432 @@ public class GitSqlObjectDatabase extends ObjectDatabase {
         }
 
         @Override
-        public void flush() throws IOException {
-            if (statement == null) {
-                return;
+        public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
+            String prefix = id.name();
+            ObjectId lo = ObjectId.fromString(pad(prefix, '0'));
+            ObjectId hi = ObjectId.fromString(pad(prefix, 'f'));
+
+            // A one digit prefix spans sixteen first bytes, and so possibly
+            // several shards; each range is asked of the shard holding it.
+            ArrayList<ObjectId> ids = new ArrayList<>();
+            try {
+                eachPrefix(lo, hi, (shard, from, to) -> {
+                    Connection connection = connect(shard);
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "SELECT `hash` FROM `git.objects` WHERE `network` = ? AND `hash` BETWEEN ? AND ?"
+                    )) {
+                        statement.setInt(1, parent.getNetwork());
+                        statement.setBytes(2, from);
+                        statement.setBytes(3, to);
+                        try (ResultSet results = statement.executeQuery()) {
+                            while (results.next()) {
+                                ids.add(ObjectId.fromRaw(results.getBytes("hash")));
+                            }
+                        }
+                    } finally {
+                        release(connection);
+                    }
+                });
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            return ids;
+        }
+
+        private String pad(String prefix, char c) {
+            StringBuilder name = new StringBuilder(Constants.OBJECT_ID_STRING_LENGTH);
+            name.append(prefix);
+            while (name.length() < Constants.OBJECT_ID_STRING_LENGTH) {
+                name.append(c);
+            }
+            return name.toString();
+        }
+
+        @Override
+        public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
+            ObjectLoader pending = pending(objectId);
+            if (pending != null) {
+                return pending;
+            }
+            ObjectLoader cached = parent.getObjectCache().get(parent.getNetwork(), objectId);
+            if (cached != null) {
+                return cached;
             }
 
+            int type;
+            SqlObjectCodec codec;
+            long size;
+            byte[] base;
+            byte[] bytes;
             try {
-                statement.executeBatch();
+                // The connection goes back before any delta base is opened.
+                Connection connection = connect(objectId);
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT `type`, `codec`, `size`, `base`," +
+                                " IF(`size` <= ? OR `base` IS NOT NULL, `content`, NULL) AS content" +
+                                " FROM `git.objects` WHERE `network` = ? AND `hash` = ?"
+                )) {
+                    statement.setInt(1, parent.getOptions().getStreamFileThreshold());
+                    statement.setInt(2, parent.getNetwork());
+                    statement.setBytes(3, raw(objectId));
+                    try (ResultSet results = statement.executeQuery()) {
+                        if (!results.next()) {
+                            throw missing(objectId, typeHint);
+                        }
+
+                        type = results.getInt("type");
+                        codec = SqlObjectCodec.get(results.getInt("codec"));
+                        size = results.getLong("size");
+                        base = results.getBytes("base");
+                        bytes = results.getBytes("content");
+                    }
+                } finally {
+                    release(connection);
+                }
             } catch (SQLException e) {
                 throw new IOException(e);
             }
+            return load(objectId, type, codec, size, base, bytes);
+        }
+
+        private ObjectLoader load(AnyObjectId objectId, int type, SqlObjectCodec codec, long size,
+                                  byte[] base, byte[] bytes) throws IOException {
+            if (bytes == null) {
+                return new SqlObjectLoader(this, objectId.copy(), type, size, codec);
+            }
+
+            bytes = decode(objectId, type, codec, size, base, bytes);
+            parent.getObjectCache().put(parent.getNetwork(), objectId, type, bytes);
+            return new ObjectLoader.SmallObject(type, bytes);
+        }
+
+        private byte[] decode(AnyObjectId objectId, int type, SqlObjectCodec codec, long size,
+                              byte[] base, byte[] bytes) throws IOException {
+            if (base == null) {
+                return codec.decode(bytes, (int) size);
+            }
+
+            // Bases come back through open(), so frequently used ones are
+            // served from the object cache.
+            byte[] delta = codec.decode(bytes);
+            ObjectLoader baseLoader = open(ObjectId.fromRaw(base), type);
+            bytes = BinaryDelta.apply(baseLoader.getCachedBytes(Integer.MAX_VALUE), delta);
+            if (bytes.length != size) {
+                throw new CorruptObjectException(objectId.copy(), "delta result size mismatch");
+            }
+            return bytes;
+        }
+
+        // Rows the inserter this reader came from has batched or is still
+        // writing behind. Only its own readers can see them, and they stay
+        // out of the shared cache until they are stored.
+        private ObjectLoader pending(AnyObjectId objectId) throws IOException {
+            PendingRow row = inserter != null ? inserter.pending(objectId) : null;
+            if (row == null) {
+                return null;
+            }
+            byte[] bytes = decode(row, row.type, SqlObjectCodec.get(row.codec), row.size, row.base, row.content);
+            return new ObjectLoader.SmallObject(row.type, bytes);
         }
 
         @Override
-        public void close() {
-            if (statement == null) {
-                return;
+        public long getObjectSize(AnyObjectId objectId, int typeHint) throws IOException {
+            PendingRow pending = inserter != null ? inserter.pending(objectId) : null;
+            if (pending != null) {
+                return pending.size;
+            }
+            ObjectLoader cached = parent.getObjectCache().get(parent.getNetwork(), objectId);
+            if (cached != null) {
+                return cached.getSize();
             }
 
             try {
-                statement.executeBatch();
-                statement.close();
+                Connection connection = connect(objectId);
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT `size` FROM `git.objects` WHERE `network` = ? AND `hash` = ?"
+                )) {
+                    statement.setInt(1, parent.getNetwork());
+                    statement.setBytes(2, raw(objectId));
+                    try (ResultSet results = statement.executeQuery()) {
+                        if (!results.next()) {
+                            throw missing(objectId, typeHint);
+                        }
+                        return results.getLong("size");
+                    }
+                } finally {
+                    release(connection);
+                }
             } catch (SQLException e) {
-                throw new RuntimeException(e);
+                throw new IOException(e);
+            }
+        }
+
+        // Asks only for the key rather than opening the object.
+        @Override
+        public boolean has(AnyObjectId objectId, int typeHint) throws IOException {
+            if (inserter != null && inserter.pending(objectId) != null) {
+                return true;
+            }
+            if (parent.getObjectCache().contains(parent.getNetwork(), objectId)) {
+                return true;
+            }
+
+            try {
+                Connection connection = connect(objectId);
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT 1 FROM `git.objects` WHERE `network` = ? AND `hash` = ?"
+                )) {
+                    statement.setInt(1, parent.getNetwork());
+                    statement.setBytes(2, raw(objectId));
+                    try (ResultSet results = statement.executeQuery()) {
+                        return results.next();
+                    }
+                } finally {
+                    release(connection);
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        // Bulk has(): the ids are probed bulkChunkSize at a time.
+        public Set<ObjectId> findExisting(Iterable<? extends AnyObjectId> ids) throws IOException {
+            Set<ObjectId> found = new HashSet<>();
+            List<AnyObjectId> chunk = new ArrayList<>();
+            for (AnyObjectId id : ids) {
+                if (inserter != null && inserter.pending(id) != null) {
+                    found.add(id.copy());
+                    continue;
+                }
+                chunk.add(id);
+                if (chunk.size() >= getOptions().getBulkChunkSize()) {
+                    findExisting(chunk, found);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                findExisting(chunk, found);
+            }
+            return found;
+        }
+
+        private void findExisting(List<AnyObjectId> chunk, Set<ObjectId> found) throws IOException {
+            List<Set<ObjectId>> parts = fanOut(chunk, (shard, ids) -> {
+                Set<ObjectId> existing = new HashSet<>();
+                Connection connection = connect(shard);
+                try {
+                    GitSqlObjectDatabase.this.findExisting(connection, ids, existing);
+                } finally {
+                    release(connection);
+                }
+                return existing;
+            });
+            for (Set<ObjectId> existing : parts) {
+                found.addAll(existing);
+            }
+        }
+
+        @Override
+        public <T extends ObjectId> AsyncObjectLoaderQueue<T> open(Iterable<T> objectIds, boolean reportMissing) {
+            return new LoaderQueue<>(objectIds, reportMissing);
+        }
+
+        @Override
+        public <T extends ObjectId> AsyncObjectSizeQueue<T> getObjectSize(Iterable<T> objectIds, boolean reportMissing) {
+            return new SizeQueue<>(objectIds, reportMissing);
+        }
+
+        // Looks objects up one IN (...) chunk at a time and hands back each
+        // chunk in the order the rows arrive; cached objects skip the query.
+        private abstract class BulkQueue<T extends ObjectId> implements AsyncOperation {
+            private final Iterator<T> ids;
+            private final boolean reportMissing;
+            private final ArrayDeque<Row<T>> rows = new ArrayDeque<>();
+            private final ArrayDeque<T> missing = new ArrayDeque<>();
+            Row<T> current;
+
+            BulkQueue(Iterable<T> objectIds, boolean reportMissing) {
+                this.ids = objectIds.iterator();
+                this.reportMissing = reportMissing;
+            }
+
+            abstract Row<T> cached(T id) throws IOException;
+
+            abstract String select();
+
+            abstract int bind(PreparedStatement statement) throws SQLException;
+
+            abstract Row<T> row(T id, ResultSet results) throws SQLException, IOException;
+
+            public boolean next() throws IOException {
+                while (rows.isEmpty()) {
+                    if (!missing.isEmpty()) {
+                        current = null;
+                        throw missing(missing.poll(), OBJ_ANY);
+                    }
+                    if (!ids.hasNext()) {
+                        current = null;
+                        return false;
+                    }
+                    fill();
+                }
+                current = rows.poll();
+                return true;
+            }
+
+            private void fill() throws IOException {
+                Map<ObjectId, List<T>> pending = new LinkedHashMap<>();
+                int limit = getOptions().getBulkChunkSize();
+                while (pending.size() < limit && ids.hasNext()) {
+                    T id = ids.next();
+                    Row<T> row = cached(id);
+                    if (row != null) {
+                        rows.add(row);
+                        continue;
+                    }
+
+                    List<T> same = pending.get(id);
+                    if (same == null) {
+                        same = new ArrayList<>(1);
+                        pending.put(id, same);
+                    }
+                    same.add(id);
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                List<List<Row<T>>> parts = fanOut(pending.keySet(), (shard, ids) -> {
+                    List<Row<T>> loaded = new ArrayList<>();
+                    Connection connection = connect(shard);
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            select() + " FROM `git.objects` WHERE `network` = ? AND `hash` IN " + placeholders(ids.size())
+                    )) {
+                        int p = bind(statement);
+                        statement.setInt(p++, parent.getNetwork());
+                        for (ObjectId id : ids) {
+                            statement.setBytes(p++, raw(id));
+                        }
+
+                        try (ResultSet results = statement.executeQuery()) {
+                            while (results.next()) {
+                                List<T> same = pending.get(ObjectId.fromRaw(results.getBytes("hash")));
+                                if (same == null) {
+                                    continue;
+                                }
+                                for (T id : same) {
+                                    loaded.add(row(id, results));
+                                }
+                            }
+                        }
+                    } finally {
+                        SqlObjectReader.this.release(connection);
+                    }
+                    return loaded;
+                });
+                for (List<Row<T>> loaded : parts) {
+                    for (Row<T> row : loaded) {
+                        pending.remove(row.id);
+                        rows.add(row);
+                    }
+                }
+
+                if (reportMissing) {
+                    for (List<T> same : pending.values()) {
+                        missing.addAll(same);
+                    }
+                }
+            }
+
+            public T getCurrent() {
+                return current != null ? current.id : null;
+            }
+
+            public ObjectId getObjectId() {
+                return current != null ? current.id : null;
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return true;
+            }
+
+            @Override
+            public void release() {
+                rows.clear();
+                missing.clear();
+                current = null;
+            }
+        }
+
+        private class LoaderQueue<T extends ObjectId> extends BulkQueue<T> implements AsyncObjectLoaderQueue<T> {
+            LoaderQueue(Iterable<T> objectIds, boolean reportMissing) {
+                super(objectIds, reportMissing);
+            }
+
+            @Override
+            Row<T> cached(T id) throws IOException {
+                ObjectLoader loader = pending(id);
+                if (loader == null) {
+                    loader = parent.getObjectCache().get(parent.getNetwork(), id);
+                }
+                return loader != null ? new Row<>(id, loader) : null;
+            }
+
+            @Override
+            String select() {
+                return "SELECT `hash`, `type`, `codec`, `size`, `base`," +
+                        " IF(`size` <= ? OR `base` IS NOT NULL, `content`, NULL) AS content";
+            }
+
+            @Override
+            int bind(PreparedStatement statement) throws SQLException {
+                statement.setInt(1, parent.getOptions().getStreamFileThreshold());
+                return 2;
+            }
+
+            @Override
+            Row<T> row(T id, ResultSet results) throws SQLException, IOException {
+                return new Row<>(id, results.getInt("type"), SqlObjectCodec.get(results.getInt("codec")),
+                        results.getLong("size"), results.getBytes("base"), results.getBytes("content"));
+            }
+
+            @Override
+            public ObjectLoader open() throws IOException {
+                Row<T> row = current;
+                if (row.loader == null) {
+                    // Delta bases are resolved here rather than while the
+                    // chunk is read, so the chunk query never nests.
+                    row.loader = load(row.id, row.type, row.codec, row.size, row.base, row.content);
+                    row.content = null;
+                }
+                return row.loader;
+            }
+        }
+
+        private class SizeQueue<T extends ObjectId> extends BulkQueue<T> implements AsyncObjectSizeQueue<T> {
+            SizeQueue(Iterable<T> objectIds, boolean reportMissing) {
+                super(objectIds, reportMissing);
+            }
+
+            @Override
+            Row<T> cached(T id) {
+                PendingRow pending = inserter != null ? inserter.pending(id) : null;
+                if (pending != null) {
+                    return new Row<>(id, pending.type, null, pending.size, null, null);
+                }
+                ObjectLoader loader = parent.getObjectCache().get(parent.getNetwork(), id);
+                return loader != null ? new Row<>(id, loader) : null;
+            }
+
+            @Override
+            String select() {
+                return "SELECT `hash`, `type`, `size`";
+            }
+
+            @Override
+            int bind(PreparedStatement statement) {
+                return 1;
+            }
+
+            @Override
+            Row<T> row(T id, ResultSet results) throws SQLException {
+                return new Row<>(id, results.getInt("type"), null, results.getLong("size"), null, null);
+            }
+
+            @Override
+            public long getSize() {
+                return current.size;
+            }
+        }
+
+        @Override
+        public ObjectToPack newObjectToPack(AnyObjectId objectId, int type) {
+            return new SqlObjectToPack(objectId, type);
+        }
+
+        @Override
+        public void selectObjectRepresentation(PackWriter packer, ProgressMonitor monitor,
+                                               Iterable<ObjectToPack> objects) throws IOException {
+            // Whole rows were already tried as deltas if the inserter was
+            // storing deltas when they were written.
+            boolean attempted = parent.getOptions().isDeltaStorage();
+            Iterator<ObjectToPack> itr = objects.iterator();
+            Map<ObjectId, ObjectToPack> chunk = new HashMap<>();
+            while (itr.hasNext()) {
+                chunk.clear();
+                while (chunk.size() < getOptions().getBulkChunkSize() && itr.hasNext()) {
+                    ObjectToPack otp = itr.next();
+                    chunk.put(otp, otp);
+                }
+
+                // PackWriter is not thread safe, so the shards only collect
+                // representations and select() is called from here.
+                List<Map<ObjectToPack, SqlObjectRepresentation>> parts = fanOut(chunk.keySet(), (shard, ids) -> {
+                    Map<ObjectToPack, SqlObjectRepresentation> found = new HashMap<>();
+                    Connection connection = connect(shard);
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "SELECT `hash`, `codec`, `size`, `base`, LENGTH(`content`) AS length" +
+                                    " FROM `git.objects` WHERE `network` = ? AND `hash` IN " + placeholders(ids.size())
+                    )) {
+                        statement.setInt(1, parent.getNetwork());
+                        int p = 2;
+                        for (ObjectId id : ids) {
+                            statement.setBytes(p++, raw(id));
+                        }
+
+                        try (ResultSet results = statement.executeQuery()) {
+                            while (results.next()) {
+                                ObjectToPack otp = chunk.get(ObjectId.fromRaw(results.getBytes("hash")));
+                                byte[] base = results.getBytes("base");
+                                found.put(otp, new SqlObjectRepresentation(
+                                        results.getInt("codec"),
+                                        results.getLong("size"),
+                                        results.getLong("length"),
+                                        base != null ? ObjectId.fromRaw(base) : null,
+                                        base != null || attempted));
+                            }
+                        }
+                    } finally {
+                        release(connection);
+                    }
+                    return found;
+                });
+                for (Map<ObjectToPack, SqlObjectRepresentation> found : parts) {
+                    for (Map.Entry<ObjectToPack, SqlObjectRepresentation> e : found.entrySet()) {
+                        packer.select(e.getKey(), e.getValue());
+                    }
+                }
+                monitor.update(chunk.size());
+            }
+        }
+
+        @Override
+        public void writeObjects(PackOutputStream out, List<ObjectToPack> list) throws IOException {
+            // Stored bytes of reused objects are fetched a chunk at a time
+            // ahead of PackWriter asking for them one by one.
+            GitSqlOptions options = parent.getOptions();
+            int start = 0;
+            while (start < list.size()) {
+                List<ObjectId> fetch = new ArrayList<>();
+                long bytes = 0;
+                int end = start;
+                while (end < list.size() && fetch.size() < options.getBulkChunkSize()
+                        && bytes < options.getReadBatchLimit()) {
+                    ObjectToPack otp = list.get(end++);
+                    if (otp.isReuseAsIs() && otp instanceof SqlObjectToPack) {
+                        long length = ((SqlObjectToPack) otp).storedLength;
+                        if (length <= options.getStreamFileThreshold()) {
+                            fetch.add(otp);
+                            bytes += length;
+                        }
+                    }
+                }
+
+                prefetch(fetch);
+                try {
+                    for (int i = start; i < end; i++) {
+                        out.writeObject(list.get(i));
+                    }
+                } finally {
+                    prefetched.clear();
+                }
+                start = end;
+            }
+        }
+
+        private void prefetch(List<ObjectId> ids) throws IOException {
+            if (ids.isEmpty()) {
+                return;
+            }
+
+            List<Map<ObjectId, byte[]>> parts = fanOut(ids, (shard, part) -> {
+                Map<ObjectId, byte[]> fetched = new HashMap<>();
+                Connection connection = connect(shard);
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT `hash`, `content` FROM `git.objects` WHERE `network` = ? AND `hash` IN " + placeholders(part.size())
+                )) {
+                    statement.setInt(1, parent.getNetwork());
+                    for (int i = 0; i < part.size(); i++) {
+                        statement.setBytes(i + 2, raw(part.get(i)));
+                    }
+                    try (ResultSet results = statement.executeQuery()) {
+                        while (results.next()) {
+                            fetched.put(ObjectId.fromRaw(results.getBytes("hash")), results.getBytes("content"));
+                        }
+                    }
+                } finally {
+                    release(connection);
+                }
+                return fetched;
+            });
+            for (Map<ObjectId, byte[]> fetched : parts) {
+                prefetched.putAll(fetched);
+            }
+        }
+
+        private byte[] stored(AnyObjectId objectId) throws IOException {
+            try {
+                Connection connection = connect(objectId);
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT `content` FROM `git.objects` WHERE `network` = ? AND `hash` = ?"
+                )) {
+                    statement.setInt(1, parent.getNetwork());
+                    statement.setBytes(2, raw(objectId));
+                    try (ResultSet results = statement.executeQuery()) {
+                        return results.next() ? results.getBytes("content") : null;
+                    }
+                } finally {
+                    release(connection);
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void copyObjectAsIs(PackOutputStream out, ObjectToPack otp, boolean validate)
+                throws IOException, StoredObjectRepresentationNotAvailableException {
+            SqlObjectToPack src = (SqlObjectToPack) otp;
+            if (src.codec != SqlObjectCodec.ZLIB && src.codec != SqlObjectCodec.RAW) {
+                throw new StoredObjectRepresentationNotAvailableException(otp);
+            }
+
+            byte[] stored = prefetched.remove(otp);
+            if (stored == null && src.storedLength <= parent.getOptions().getStreamFileThreshold()) {
+                stored = stored(otp);
+                if (stored == null) {
+                    throw new StoredObjectRepresentationNotAvailableException(otp);
+                }
+            }
+
+            if (otp.isDeltaRepresentation()) {
+                if (stored == null) {
+                    throw new StoredObjectRepresentationNotAvailableException(otp);
+                }
+                if (src.codec == SqlObjectCodec.ZLIB) {
+                    out.writeHeader(otp, inflatedLength(otp, stored));
+                    out.write(stored);
+                } else {
+                    out.writeHeader(otp, stored.length);
+                    deflate(out, stored);
+                }
+                return;
+            }
+
+            if (src.codec != SqlObjectCodec.ZLIB) {
+                throw new StoredObjectRepresentationNotAvailableException(otp);
+            }
+            if (stored != null) {
+                if (validate && inflatedLength(otp, stored) != src.size) {
+                    throw new CorruptObjectException(otp.copy(), "stored size mismatch");
+                }
+                out.writeHeader(otp, src.size);
+                out.write(stored);
+                return;
+            }
+
+            // Large objects are copied through in chunks; the first chunk is
+            // read before the header so a vanished row can still be reselected.
+            byte[] buf = out.getCopyBuffer();
+            try (InputStream in = new SqlBlobInputStream(this, otp.copy())) {
+                int n;
+                try {
+                    n = in.read(buf);
+                } catch (MissingObjectException e) {
+                    throw new StoredObjectRepresentationNotAvailableException(otp);
+                }
+                out.writeHeader(otp, src.size);
+                while (n > 0) {
+                    out.write(buf, 0, n);
+                    n = in.read(buf);
+                }
+            }
+        }
+
+        private long inflatedLength(AnyObjectId objectId, byte[] data) throws IOException {
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.reset();
+            inflater.setInput(data);
+
+            byte[] buf = new byte[8192];
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.inflate(buf) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new CorruptObjectException(objectId.copy(), "truncated zlib stream");
+                    }
+                }
+            } catch (DataFormatException e) {
+                CorruptObjectException corrupt = new CorruptObjectException(objectId.copy(), e.getMessage());
+                corrupt.initCause(e);
+                throw corrupt;
+            }
+            return inflater.getBytesWritten();
+        }
+
+        private void deflate(OutputStream out, byte[] data) throws IOException {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            }
+            deflater.reset();
+
+            DeflaterOutputStream dst = new DeflaterOutputStream(out, deflater, 8192);
+            dst.write(data);
+            dst.finish();
+        }
+
+        @Override
+        public void copyPackAsIs(PackOutputStream out, CachedPack pack) throws IOException {
+            // No cached packs are ever offered.
+        }
+
+        @Override
+        public Collection<CachedPack> getCachedPacksAndUpdate(BitmapIndex.BitmapBuilder needBitmap) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Set<ObjectId> getShallowCommits() throws IOException {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void close() {
+            prefetched.clear();
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+
+    static MissingObjectException missing(AnyObjectId objectId, int typeHint) {
+        if (typeHint == ObjectReader.OBJ_ANY) {
+            return new MissingObjectException(objectId.copy(), "unknown");
+        }
+        return new MissingObjectException(objectId.copy(), typeHint);
+    }
+
+    public class SqlObjectLoader extends ObjectLoader {
+        private final SqlObjectReader reader;
+        private final ObjectId objectId;
+        private final int type;
+        private final long size;
+        private final SqlObjectCodec codec;
+
+        SqlObjectLoader(SqlObjectReader reader, ObjectId objectId, int type, long size, SqlObjectCodec codec) {
+            this.reader = reader;
+            this.objectId = objectId;
+            this.type = type;
+            this.size = size;
+            this.codec = codec;
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean isLarge() {
+            return true;
+        }
+
+        @Override
+        public byte[] getCachedBytes() throws LargeObjectException {
+            throw new LargeObjectException(objectId);
+        }
+
+        @Override
+        public ObjectStream openStream() throws IOException {
+            InputStream in = codec.decode(new SqlBlobInputStream(reader, objectId));
+            return new ObjectStream.Filter(type, size,
+                    new BufferedInputStream(in, parent.getOptions().getStreamBufferSize()));
+        }
+    }
+
+    // Each chunk is fetched on its own borrowed connection, so a stream
+    // outlives the reader that opened it without holding a connection.
+    private class SqlBlobInputStream extends InputStream {
+        private final SqlObjectReader reader;
+        private final ObjectId objectId;
+
+        private long length = -1;
+        private long position;
+        private byte[] chunk;
+        private int chunkPos;
+
+        SqlBlobInputStream(SqlObjectReader reader, ObjectId objectId) {
+            this.reader = reader;
+            this.objectId = objectId;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk[chunkPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+
+            int n = Math.min(len, chunk.length - chunkPos);
+            System.arraycopy(chunk, chunkPos, b, off, n);
+            chunkPos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (!fill()) {
+                return 0;
+            }
+
+            int inChunk = (int) Math.min(n, chunk.length - chunkPos);
+            chunkPos += inChunk;
+
+            long remaining = Math.min(n - inChunk, length - position);
+            position += remaining;
+            return inChunk + remaining;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null ? 0 : chunk.length - chunkPos;
+        }
+
+        private boolean fill() throws IOException {
+            if (chunk != null && chunkPos < chunk.length) {
+                return true;
+            }
+            if (length >= 0 && position >= length) {
+                return false;
+            }
+
+            try {
+                Connection connection = reader.connect(objectId);
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT SUBSTRING(`content`, ?, ?) AS chunk, LENGTH(`content`) AS length" +
+                                " FROM `git.objects` WHERE `network` = ? AND `hash` = ?"
+                )) {
+                    statement.setLong(1, position + 1);
+                    statement.setInt(2, parent.getOptions().getStreamBufferSize());
+                    statement.setInt(3, parent.getNetwork());
+                    statement.setBytes(4, raw(objectId));
+                    try (ResultSet results = statement.executeQuery()) {
+                        if (!results.next()) {
+                            throw new MissingObjectException(objectId, Constants.OBJ_BLOB);
+                        }
+
+                        chunk = results.getBytes("chunk");
+                        length = results.getLong("length");
+                    }
+                } finally {
+                    reader.release(connection);
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+
+            if (position >= length) {
+                return false;
+            }
+            if (chunk == null || chunk.length == 0) {
+                throw new EOFException();
+            }
+            chunkPos = 0;
+            position += chunk.length;
+            return true;
+        }
+    }
+
+    // An inserter checks out one connection with its first row and keeps it,
+    // along with the pending rows, until it is closed. A row already pending
+    // is not added twice. With write-behind, full batches are handed to a
+    // background flusher that writes them on a connection of its own, at
+    // most one batch at a time, while insert() carries on.
+    public class SqlObjectInserter extends ObjectInserter {
+        private Connection connection;
+        private final Connection[] shardConnections = new Connection[parent.getShards().size()];
+        private final Map<ObjectId, PendingRow> batch = new LinkedHashMap<>();
+        private final Map<ObjectId, GitSqlCommitGraph.Commit> commits = new LinkedHashMap<>();
+        private final Map<ObjectId, List<GitSqlPathIndex.Entry>> trees = new LinkedHashMap<>();
+        private final List<GitSqlCommitGraph.Commit> written = new ArrayList<>();
+        private long batchBytes;
+        private ExecutorService flusher;
+        private Future<?> inFlight;
+        private Map<ObjectId, PendingRow> inFlightRows;
+        private SqlObjectReader baseReader;
+        private RecentObjects recent;
+
+        void hashHeader(SHA1 md, final int type, long len) {
+            md.update(Constants.encodedTypeString(type));
+            md.update((byte) ' ');
+            md.update(Constants.encodeASCII(len));
+            md.update((byte) 0);
+        }
+
+        @Override
+        public ObjectId insert(int objectType, long length, InputStream in) throws IOException {
+            if (objectType == Constants.OBJ_BLOB && length > parent.getOptions().getStreamFileThreshold()) {
+                return insertStream(objectType, length, in);
+            }
+
+            byte[] data = new byte[(int) length];
+            IO.readFully(in, data, 0, data.length);
+            return insert(objectType, data, 0, data.length);
+        }
+
+        // Large objects are hashed while they are spilled to a temporary file
+        // and then streamed from it as a row of their own, so the heap never
+        // holds more than a buffer of one. They are stored raw, since the
+        // codecs only encode whole arrays.
+        private ObjectId insertStream(int objectType, long length, InputStream in) throws IOException {
+            int bufferSize = parent.getOptions().getStreamBufferSize();
+            File spill = File.createTempFile("insert_", ".obj");
+            try {
+                SHA1 sha = digest();
+                hashHeader(sha, objectType, length);
+                try (OutputStream out = new SHA1OutputStream(
+                        new BufferedOutputStream(new FileOutputStream(spill), bufferSize), sha)) {
+                    byte[] data = buffer();
+                    long remaining = length;
+                    while (remaining > 0) {
+                        int nRead = in.read(data, 0, (int) Math.min(data.length, remaining));
+                        if (nRead < 0) {
+                            throw new EOFException();
+                        }
+                        out.write(data, 0, nRead);
+                        remaining -= nRead;
+                    }
+                }
+
+                ObjectId id = sha.toObjectId();
+                try (SqlObjectReader reader = new SqlObjectReader(this)) {
+                    SqlObjectFilter known = filter(reader);
+                    boolean probe = known == null || !known.isReady() || known.mightContain(id);
+                    if (pending(id) != null || probe && reader.has(id)) {
+                        return id;
+                    }
+                }
+
+                // Rows pending so far go first, so the table never holds a
+                // later object without the earlier ones.
+                flush();
+                try (InputStream content = new BufferedInputStream(new FileInputStream(spill), bufferSize);
+                     PreparedStatement insert = connection(parent.getShards().shardOf(id))
+                             .prepareStatement(INSERT_OBJECTS + OBJECT_VALUES)) {
+                    insert.setInt(1, parent.getNetwork());
+                    insert.setBytes(2, raw(id));
+                    insert.setInt(3, objectType);
+                    insert.setInt(4, SqlObjectCodec.RAW);
+                    insert.setLong(5, length);
+                    insert.setBytes(6, null);
+                    insert.setInt(7, 0);
+                    insert.setBinaryStream(8, content, length);
+                    insert.executeUpdate();
+                }
+
+                SqlObjectFilter current = filter.get();
+                if (current != null) {
+                    current.add(id);
+                }
+                return id;
+            } catch (SQLException e) {
+                throw new IOException(e);
+            } finally {
+                if (!spill.delete() && spill.exists()) {
+                    spill.deleteOnExit();
+                }
+            }
+        }
+
+        @Override
+        public ObjectId insert(int objectType, byte[] data, int off, int len) throws IOException {
+            try {
+                SHA1 sha = digest();
+                hashHeader(sha, objectType, len);
+                sha.update(data, off, len);
+
+                ObjectId id = sha.toObjectId();
+                if (off != 0 || len != data.length) {
+                    data = Arrays.copyOfRange(data, off, off + len);
+                }
+                addRow(id, objectType, data);
+                return id;
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public ObjectId insert(int objectType, byte[] data, AnyObjectId deltaBase) throws IOException {
+            ObjectId id = idFor(objectType, data);
+            try {
+                addRow(id, objectType, data, deltaBase);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            return id;
+        }
+
+        void addRow(AnyObjectId id, int objectType, byte[] bytes) throws SQLException, IOException {
+            addRow(id, objectType, bytes, null);
+        }
+
+        void addRow(AnyObjectId id, int objectType, byte[] bytes, AnyObjectId deltaBase) throws SQLException, IOException {
+            if (batch.containsKey(id)) {
+                return;
+            }
+
+            GitSqlOptions options = parent.getOptions();
+            byte[] payload = bytes;
+            Base base = null;
+            int depth = 0;
+            if (options.isDeltaStorage()) {
+                if (deltaBase != null) {
+                    base = deltaAgainst(deltaBase, objectType, bytes);
+                }
+                if (base != null) {
+                    payload = base.delta;
+                    depth = base.depth + 1;
+                }
+                if (objectType == Constants.OBJ_BLOB || objectType == Constants.OBJ_TREE) {
+                    recentObjects().put(id, objectType, bytes, depth);
+                }
+            }
+
+            SqlObjectCodec codec = chooseCodec(objectType, payload);
+            byte[] stored = payload;
+            if (codec.getId() != SqlObjectCodec.RAW) {
+                stored = codec.encode(payload);
+                // Keep the raw bytes unless compression saves at least an eighth.
+                if (stored.length > payload.length - payload.length / 8) {
+                    codec = RAW_CODEC;
+                    stored = payload;
+                }
+            }
+
+            PendingRow row = new PendingRow(id, objectType, codec.getId(), bytes.length,
+                    base != null ? raw(base.id) : null, depth, stored);
+            batch.put(row, row);
+
+            if (objectType == Constants.OBJ_COMMIT) {
+                commits.put(id.copy(), GitSqlCommitGraph.Commit.parse(id, bytes));
+            } else if (objectType == Constants.OBJ_TREE && options.isPathIndex()) {
+                List<GitSqlPathIndex.Entry> entries = GitSqlPathIndex.parse(bytes);
+                if (GitSqlPathIndex.indexable(entries)) {
+                    trees.put(id.copy(), entries);
+                }
+            }
+
+            // The batch is bounded by the bytes it holds rather than by rows,
+            // so a push of many large objects runs in constant memory.
+            batchBytes += stored.length;
+            if (batchBytes >= options.getInsertBatchLimit()) {
+                writeObjects(false);
+            }
+        }
+
+        private void writeObjects(boolean wait) throws SQLException, IOException {
+            if (!batch.isEmpty()) {
+                // Loaded here, on this thread's connections, for writeRows()
+                // to skip the probe for ids it rules out.
+                try (SqlObjectReader reader = new SqlObjectReader(this)) {
+                    filter(reader);
+                }
+
+                List<PendingRow> rows = new ArrayList<>(batch.values());
+                batch.clear();
+                batchBytes = 0;
+
+                if (parent.getOptions().isWriteBehind()) {
+                    awaitFlusher();
+                    inFlightRows = new HashMap<>();
+                    for (PendingRow row : rows) {
+                        inFlightRows.put(row, row);
+                    }
+                    inFlight = flusher().submit(() -> fanOut(rows, (shard, part) -> {
+                        try (Connection flushing = parent.getShards().get(shard).getConnection()) {
+                            writeRows(flushing, part);
+                        }
+                        return null;
+                    }));
+                } else {
+                    fanOut(rows, (shard, part) -> {
+                        writeRows(connection(shard), part);
+                        return null;
+                    });
+                }
+            }
+            if (wait) {
+                awaitFlusher();
+            }
+        }
+
+        private ExecutorService flusher() {
+            if (flusher == null) {
+                flusher = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "git-sql-write-behind");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            return flusher;
+        }
+
+        // Rethrows whatever the background write failed with, so a lost batch
+        // surfaces on the next insert, flush() or close().
+        private void awaitFlusher() throws IOException {
+            if (inFlight == null) {
+                return;
+            }
+
+            try {
+                inFlight.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                inFlight = null;
+                inFlightRows = null;
+            }
+        }
+
+        PendingRow pending(AnyObjectId id) {
+            PendingRow row = batch.get(id);
+            if (row == null && inFlightRows != null) {
+                row = inFlightRows.get(id);
+            }
+            return row;
+        }
+
+        private void writeTrees() throws SQLException {
+            if (trees.isEmpty()) {
+                return;
+            }
+
+            try (PreparedStatement insert = connection().prepareStatement(GitSqlPathIndex.INSERT_TREE)) {
+                for (Map.Entry<ObjectId, List<GitSqlPathIndex.Entry>> t : trees.entrySet()) {
+                    for (GitSqlPathIndex.Entry e : t.getValue()) {
+                        GitSqlPathIndex.bind(insert, parent.getNetwork(), t.getKey(), e);
+                        insert.addBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+            trees.clear();
+        }
+
+        // Graph rows wait until their generation is known, or until close()
+        // when a parent is not in the store (yet).
+        private void writeCommits(boolean all) throws SQLException {
+            if (commits.isEmpty()) {
+                return;
+            }
+
+            GitSqlCommitGraph.assignGenerations(connection(), parent.getNetwork(), commits, parent.getOptions().getBulkChunkSize());
+            try (PreparedStatement graph = connection().prepareStatement(GitSqlCommitGraph.INSERT)) {
+                Iterator<GitSqlCommitGraph.Commit> itr = commits.values().iterator();
+                while (itr.hasNext()) {
+                    GitSqlCommitGraph.Commit c = itr.next();
+                    if (all || c.getGeneration() != GitSqlCommitGraph.GENERATION_UNKNOWN) {
+                        c.bind(graph, parent.getNetwork());
+                        graph.addBatch();
+                        itr.remove();
+                        if (parent.getOptions().isPathIndex()) {
+                            written.add(c);
+                        }
+                    }
+                }
+                graph.executeBatch();
+            }
+        }
+
+        private Base deltaAgainst(AnyObjectId baseId, int objectType, byte[] bytes) throws SQLException, IOException {
+            GitSqlOptions options = parent.getOptions();
+            if (objectType != Constants.OBJ_BLOB && objectType != Constants.OBJ_TREE) {
+                return null;
+            }
+            if (bytes.length < options.getCompressionThreshold() || bytes.length > options.getStreamFileThreshold()) {
+                return null;
+            }
+
+            Base base = recentObjects().get(baseId);
+            if (base == null) {
+                base = loadBase(baseId);
+            }
+            if (base == null || base.type != objectType || base.depth >= options.getMaxDeltaDepth()) {
+                return null;
+            }
+            if (base.data.length > options.getStreamFileThreshold()) {
+                return null;
+            }
+
+            // Only worth the extra read on load if the delta halves the object.
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (!new DeltaIndex(base.data).encode(out, bytes, bytes.length / 2)) {
+                return null;
+            }
+            base.delta = out.toByteArray();
+            return base;
+        }
+
+        private Base loadBase(AnyObjectId baseId) throws SQLException, IOException {
+            int type;
+            int depth;
+            try (PreparedStatement query = connection(parent.getShards().shardOf(baseId)).prepareStatement(
+                    "SELECT `type`, `depth` FROM `git.objects` WHERE `network` = ? AND `hash` = ?"
+            )) {
+                query.setInt(1, parent.getNetwork());
+                query.setBytes(2, raw(baseId));
+                try (ResultSet results = query.executeQuery()) {
+                    if (!results.next()) {
+                        return null;
+                    }
+                    type = results.getInt("type");
+                    depth = results.getInt("depth");
+                }
+            }
+
+            if (baseReader == null) {
+                baseReader = new SqlObjectReader(this);
+            }
+            ObjectLoader loader = baseReader.open(baseId, type);
+            if (loader.isLarge()) {
+                return null;
+            }
+            return new Base(baseId.copy(), type, loader.getCachedBytes(), depth);
+        }
+
+        private Connection connection() throws SQLException {
+            if (connection == null) {
+                connection = parent.getDataSource().getConnection();
+            }
+            return connection;
+        }
+
+        // A shard on the repository's own data source shares the inserter's
+        // main connection, so an unsharded store still uses just the one.
+        // Each shard's connection is only ever used by one thread at a time.
+        private Connection connection(int shard) throws SQLException {
+            if (parent.getShards().get(shard) == parent.getDataSource()) {
+                return connection();
+            }
+            if (shardConnections[shard] == null) {
+                shardConnections[shard] = parent.getShards().get(shard).getConnection();
+            }
+            return shardConnections[shard];
+        }
+
+        Connection held(int shard) {
+            if (parent.getShards().get(shard) == parent.getDataSource()) {
+                return connection;
+            }
+            return shardConnections[shard];
+        }
+
+        boolean holds(Connection c) {
+            return c == connection || Arrays.asList(shardConnections).contains(c);
+        }
+
+        private RecentObjects recentObjects() {
+            if (recent == null) {
+                recent = new RecentObjects(parent.getOptions().getDeltaBaseCacheLimit());
+            }
+            return recent;
+        }
+
+        private SqlObjectCodec chooseCodec(int objectType, byte[] bytes) {
+            GitSqlOptions options = parent.getOptions();
+            if (bytes.length < options.getCompressionThreshold()) {
+                return RAW_CODEC;
+            }
+            if (objectType == Constants.OBJ_BLOB && SqlObjectCodec.looksCompressed(bytes)) {
+                return RAW_CODEC;
+            }
+            return options.getCodec();
+        }
+
+        @Override
+        public PackParser newPackParser(InputStream in) throws IOException {
+            return new SqlPackParser(GitSqlObjectDatabase.this, this, in);
+        }
+
+        @Override
+        public ObjectReader newReader() {
+            return new SqlObjectReader(this);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                writeObjects(true);
+                writeTrees();
+                writeCommits(false);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                writeObjects(true);
+                writeTrees();
+                writeCommits(true);
+            } catch (SQLException | IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (flusher != null) {
+                    flusher.shutdown();
+                    flusher = null;
+                }
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (SQLException ignored) {
+                    }
+                    connection = null;
+                }
+                for (int shard = 0; shard < shardConnections.length; shard++) {
+                    if (shardConnections[shard] != null) {
+                        try {
+                            shardConnections[shard].close();
+                        } catch (SQLException ignored) {
+                        }
+                        shardConnections[shard] = null;
+                    }
+                }
+            }
+
+            // Runs on connections of its own, so only once ours is back in
+            // the pool. Commits it cannot index yet are left to update().
+            if (!written.isEmpty()) {
+                try {
+                    parent.getPathIndex().index(written, true);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    written.clear();
+                }
+            }
+        }
+    }
+
+    private static class Row<T extends ObjectId> {
+        final T id;
+        final int type;
+        final SqlObjectCodec codec;
+        final long size;
+        final byte[] base;
+        byte[] content;
+        ObjectLoader loader;
+
+        Row(T id, int type, SqlObjectCodec codec, long size, byte[] base, byte[] content) {
+            this.id = id;
+            this.type = type;
+            this.codec = codec;
+            this.size = size;
+            this.base = base;
+            this.content = content;
+        }
+
+        Row(T id, ObjectLoader loader) {
+            this(id, loader.getType(), null, loader.getSize(), null, null);
+            this.loader = loader;
+        }
+    }
+
+    private static class PendingRow extends ObjectId {
+        private static final long serialVersionUID = 1L;
+
+        final int type;
+        final int codec;
+        final long size;
+        final byte[] base;
+        final int depth;
+        final byte[] content;
+
+        PendingRow(AnyObjectId id, int type, int codec, long size, byte[] base, int depth, byte[] content) {
+            super(id);
+            this.type = type;
+            this.codec = codec;
+            this.size = size;
+            this.base = base;
+            this.depth = depth;
+            this.content = content;
+        }
+    }
+
+    private static class Base {
+        final ObjectId id;
+        final int type;
+        final byte[] data;
+        final int depth;
+        byte[] delta;
+
+        Base(ObjectId id, int type, byte[] data, int depth) {
+            this.id = id;
+            this.type = type;
+            this.data = data;
+            this.depth = depth;
+        }
+    }
+
+    private static class RecentObjects extends LinkedHashMap<ObjectId, Base> {
+        private static final long serialVersionUID = 1L;
+
+        private final long limit;
+        private long weight;
+
+        RecentObjects(long limit) {
+            super(64, 0.75f, true);
+            this.limit = limit;
+        }
+
+        Base get(AnyObjectId id) {
+            return super.get(id);
+        }
+
+        void put(AnyObjectId id, int type, byte[] data, int depth) {
+            if (data.length > limit / 4) {
+                return;
+            }
+
+            Base old = put(id.copy(), new Base(id.copy(), type, data, depth));
+            if (old != null) {
+                weight -= old.data.length;
+            }
+            weight += data.length;
+
+            Iterator<Base> itr = values().iterator();
+            while (weight > limit && itr.hasNext()) {
+                weight -= itr.next().data.length;
+                itr.remove();
             }
         }
     }
@@ -0,0 +1,256 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.storage.pack.PackConfig;
+
+import java.util.zip.Deflater;
+
+public class GitSqlOptions {
+    public static final int KiB = 1024;
+    public static final int MiB = 1024 * KiB;
+
+    private long objectCacheLimit;
+    private int streamFileThreshold;
+    private int streamBufferSize;
+    private long insertBatchLimit;
+    private int bulkChunkSize;
+    private long readBatchLimit;
+    private SqlObjectCodec codec;
+    private int compressionThreshold;
+    private boolean deltaStorage;
+    private int maxDeltaDepth;
+    private long deltaBaseCacheLimit;
+    private int maxConnections;
+    private long connectionTimeout;
+    private int statementCacheSize;
+    private boolean pathIndex;
+    private boolean refCache;
+    private boolean objectFilter;
+    private int objectFilterBits;
+    private boolean writeBehind;
+    private SqlShardMap shardMap;
+    private boolean forkSharing;
+
+    public GitSqlOptions() {
+        setObjectCacheLimit(64 * MiB);
+        setStreamFileThreshold(PackConfig.DEFAULT_BIG_FILE_THRESHOLD);
+        setStreamBufferSize(MiB);
+        setInsertBatchLimit(16 * MiB);
+        setBulkChunkSize(1000);
+        setReadBatchLimit(16 * MiB);
+        setCompressionLevel(Deflater.BEST_SPEED);
+        setCompressionThreshold(64);
+        setDeltaStorage(false);
+        setMaxDeltaDepth(10);
+        setDeltaBaseCacheLimit(16 * MiB);
+        setMaxConnections(8);
+        setConnectionTimeout(30000);
+        setStatementCacheSize(64);
+        setPathIndex(false);
+        setRefCache(true);
+        setObjectFilter(false);
+        setObjectFilterBits(10);
+        setWriteBehind(false);
+        setForkSharing(true);
+    }
+
+    public long getObjectCacheLimit() {
+        return objectCacheLimit;
+    }
+
+    public GitSqlOptions setObjectCacheLimit(long maxBytes) {
+        objectCacheLimit = Math.max(0, maxBytes);
+        return this;
+    }
+
+    public int getStreamFileThreshold() {
+        return streamFileThreshold;
+    }
+
+    public GitSqlOptions setStreamFileThreshold(int newLimit) {
+        streamFileThreshold = Math.max(0, newLimit);
+        return this;
+    }
+
+    public int getStreamBufferSize() {
+        return streamBufferSize;
+    }
+
+    public GitSqlOptions setStreamBufferSize(int bufsz) {
+        streamBufferSize = Math.max(KiB, bufsz);
+        return this;
+    }
+
+    public long getInsertBatchLimit() {
+        return insertBatchLimit;
+    }
+
+    public GitSqlOptions setInsertBatchLimit(long maxBytes) {
+        insertBatchLimit = Math.max(0, maxBytes);
+        return this;
+    }
+
+    public int getBulkChunkSize() {
+        return bulkChunkSize;
+    }
+
+    public GitSqlOptions setBulkChunkSize(int ids) {
+        bulkChunkSize = Math.max(1, ids);
+        return this;
+    }
+
+    public long getReadBatchLimit() {
+        return readBatchLimit;
+    }
+
+    public GitSqlOptions setReadBatchLimit(long maxBytes) {
+        readBatchLimit = Math.max(0, maxBytes);
+        return this;
+    }
+
+    public SqlObjectCodec getCodec() {
+        return codec;
+    }
+
+    public GitSqlOptions setCodec(SqlObjectCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public GitSqlOptions setCompressionLevel(int level) {
+        if (level == Deflater.NO_COMPRESSION) {
+            codec = new SqlObjectCodec.Raw();
+        } else {
+            codec = new SqlObjectCodec.Zlib(level);
+        }
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public GitSqlOptions setCompressionThreshold(int minBytes) {
+        compressionThreshold = Math.max(0, minBytes);
+        return this;
+    }
+
+    public boolean isDeltaStorage() {
+        return deltaStorage;
+    }
+
+    public GitSqlOptions setDeltaStorage(boolean enabled) {
+        deltaStorage = enabled;
+        return this;
+    }
+
+    public int getMaxDeltaDepth() {
+        return maxDeltaDepth;
+    }
+
+    public GitSqlOptions setMaxDeltaDepth(int depth) {
+        maxDeltaDepth = Math.max(0, Math.min(255, depth));
+        return this;
+    }
+
+    public long getDeltaBaseCacheLimit() {
+        return deltaBaseCacheLimit;
+    }
+
+    public GitSqlOptions setDeltaBaseCacheLimit(long maxBytes) {
+        deltaBaseCacheLimit = Math.max(0, maxBytes);
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public GitSqlOptions setMaxConnections(int connections) {
+        maxConnections = Math.max(1, connections);
+        return this;
+    }
+
+    public long getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    public GitSqlOptions setConnectionTimeout(long millis) {
+        connectionTimeout = Math.max(0, millis);
+        return this;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public GitSqlOptions setStatementCacheSize(int statements) {
+        statementCacheSize = Math.max(0, statements);
+        return this;
+    }
+
+    public boolean isPathIndex() {
+        return pathIndex;
+    }
+
+    public GitSqlOptions setPathIndex(boolean enabled) {
+        pathIndex = enabled;
+        return this;
+    }
+
+    public boolean isRefCache() {
+        return refCache;
+    }
+
+    public GitSqlOptions setRefCache(boolean enabled) {
+        refCache = enabled;
+        return this;
+    }
+
+    public boolean isObjectFilter() {
+        return objectFilter;
+    }
+
+    public GitSqlOptions setObjectFilter(boolean enabled) {
+        objectFilter = enabled;
+        return this;
+    }
+
+    public int getObjectFilterBits() {
+        return objectFilterBits;
+    }
+
+    public GitSqlOptions setObjectFilterBits(int bitsPerObject) {
+        objectFilterBits = Math.max(1, Math.min(32, bitsPerObject));
+        return this;
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public GitSqlOptions setWriteBehind(boolean enabled) {
+        writeBehind = enabled;
+        return this;
+    }
+
+    public SqlShardMap getShardMap() {
+        return shardMap;
+    }
+
+    // Null keeps every object on the repository's own data source.
+    public GitSqlOptions setShardMap(SqlShardMap shards) {
+        shardMap = shards;
+        return this;
+    }
+
+    public boolean isForkSharing() {
+        return forkSharing;
+    }
+
+    // Forks made through GitSqlHost share the objects of their network
+    // instead of getting a copy.
+    public GitSqlOptions setForkSharing(boolean enabled) {
+        forkSharing = enabled;
+        return this;
+    }
+}
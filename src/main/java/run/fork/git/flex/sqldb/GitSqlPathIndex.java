@@ -0,0 +1,483 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.AsyncObjectLoaderQueue;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Two tables that answer path questions with index range scans instead of
+// recursive tree loads. `git.trees` holds the entries of every tree the
+// inserter writes; `git.paths` holds, per commit, each file that differs
+// from the commit's first parent, plus a row for the root tree that marks
+// the commit as indexed. Deleted files are recorded with a zero id.
+//
+// Paths are kept as raw bytes; the strings used internally are ISO-8859-1
+// so that they map back to those bytes exactly.
+public class GitSqlPathIndex {
+    // Names and paths longer than this are not indexed; such trees fall
+    // back to loading the object, such files are left out of the history.
+    static final int MAX_PATH = 2048;
+
+    // Has no rows, and need not be stored to be referenced.
+    static final ObjectId EMPTY_TREE = new ObjectInserter.Formatter().idFor(Constants.OBJ_TREE, new byte[0]);
+
+    private final GitSqlRepository parent;
+
+    public GitSqlPathIndex(GitSqlRepository parent) {
+        this.parent = parent;
+    }
+
+    static void createTables(Connection connection) throws SQLException {
+        try (Statement creates = connection.createStatement()) {
+            creates.execute(
+                    "CREATE TABLE IF NOT EXISTS `git.trees` (\n" +
+                            "  `network` INT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Object Network',\n" +
+                            "  `tree` BINARY(20) NOT NULL COMMENT 'Tree Hash',\n" +
+                            "  `name` VARBINARY(" + MAX_PATH + ") NOT NULL COMMENT 'Entry Name',\n" +
+                            "  `mode` INT NOT NULL COMMENT 'Entry Mode',\n" +
+                            "  `object` BINARY(20) NOT NULL COMMENT 'Entry Hash',\n" +
+                            "  PRIMARY KEY (`network`, `tree`, `name`)\n" +
+                            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Tree Entries'"
+            );
+            creates.execute(
+                    "CREATE TABLE IF NOT EXISTS `git.paths` (\n" +
+                            "  `network` INT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Object Network',\n" +
+                            "  `commit` BINARY(20) NOT NULL COMMENT 'Commit Hash',\n" +
+                            "  `path` VARBINARY(" + MAX_PATH + ") NOT NULL COMMENT 'Changed Path',\n" +
+                            "  `mode` INT NOT NULL COMMENT 'New Mode',\n" +
+                            "  `object` BINARY(20) NOT NULL COMMENT 'New Hash',\n" +
+                            "  PRIMARY KEY (`network`, `commit`, `path`),\n" +
+                            "  KEY `path` (`network`, `path`(255))\n" +
+                            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Path Changes'"
+            );
+        }
+    }
+
+    static final String INSERT_TREE =
+            "INSERT IGNORE INTO `git.trees` (`network`, `tree`, `name`, `mode`, `object`) VALUES (?, ?, ?, ?, ?)";
+
+    static final String INSERT_PATH =
+            "INSERT IGNORE INTO `git.paths` (`network`, `commit`, `path`, `mode`, `object`) VALUES (?, ?, ?, ?, ?)";
+
+    public static class Entry {
+        private final String raw;
+        private final int mode;
+        private final ObjectId id;
+
+        Entry(String raw, int mode, ObjectId id) {
+            this.raw = raw;
+            this.mode = mode;
+            this.id = id;
+        }
+
+        public String getPath() {
+            return RawParseUtils.decode(bytes(raw));
+        }
+
+        public FileMode getMode() {
+            return FileMode.fromBits(mode);
+        }
+
+        public ObjectId getObjectId() {
+            return id;
+        }
+
+        boolean isTree() {
+            return (mode & FileMode.TYPE_MASK) == FileMode.TYPE_TREE;
+        }
+
+        Entry under(String prefix) {
+            return new Entry(prefix.isEmpty() ? raw : prefix + '/' + raw, mode, id);
+        }
+    }
+
+    private static byte[] bytes(String raw) {
+        return raw.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String raw(String path) {
+        return new String(Constants.encode(path), StandardCharsets.ISO_8859_1);
+    }
+
+    static List<Entry> parse(byte[] tree) {
+        List<Entry> entries = new ArrayList<>();
+        CanonicalTreeParser parser = new CanonicalTreeParser();
+        parser.reset(tree);
+        for (; !parser.eof(); parser.next(1)) {
+            entries.add(new Entry(
+                    new String(parser.getEntryPathBuffer(), 0, parser.getEntryPathLength(), StandardCharsets.ISO_8859_1),
+                    parser.getEntryRawMode(),
+                    parser.getEntryObjectId()
+            ));
+        }
+        return entries;
+    }
+
+    static boolean indexable(List<Entry> entries) {
+        for (Entry e : entries) {
+            if (e.raw.length() > MAX_PATH) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void bind(PreparedStatement statement, int network, AnyObjectId owner, Entry e) throws SQLException {
+        statement.setInt(1, network);
+        statement.setBytes(2, GitSqlObjectDatabase.raw(owner));
+        statement.setBytes(3, bytes(e.raw));
+        statement.setInt(4, e.mode);
+        statement.setBytes(5, GitSqlObjectDatabase.raw(e.id));
+    }
+
+    // Commits that changed the path, or anything below it, newest first.
+    public List<GitSqlCommitGraph.Commit> history(String path, int limit) throws IOException {
+        String exact = raw(path);
+        String escaped = exact.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+
+        List<GitSqlCommitGraph.Commit> out = new ArrayList<>();
+        try (Connection connection = parent.getDataSource().getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT DISTINCT c.`hash`, c.`tree`, c.`parents`, c.`commit_time`, c.`generation`" +
+                             " FROM `git.paths` p JOIN `git.commits` c ON c.`network` = p.`network` AND c.`hash` = p.`commit`" +
+                             " WHERE p.`network` = ? AND (p.`path` = ? OR p.`path` LIKE ? ESCAPE '!')" +
+                             " ORDER BY c.`commit_time` DESC, c.`generation` DESC LIMIT ?"
+             )) {
+            statement.setInt(1, parent.getNetwork());
+            statement.setBytes(2, bytes(exact));
+            statement.setBytes(3, bytes(escaped + "/%"));
+            statement.setInt(4, limit > 0 ? limit : Integer.MAX_VALUE);
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    out.add(GitSqlCommitGraph.Commit.read(results));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return out;
+    }
+
+    // The entries of the tree at the given path of a commit, as ls-tree
+    // prints them. Recursive listings return files only, sorted by path.
+    public List<Entry> list(AnyObjectId commit, String path, boolean recursive) throws IOException {
+        GitSqlCommitGraph.Commit c = parent.getCommitGraph()
+                .lookup(Collections.singletonList(commit)).get(commit.copy());
+        if (c == null) {
+            throw new MissingObjectException(commit.copy(), Constants.OBJ_COMMIT);
+        }
+
+        String prefix = "";
+        ObjectId tree = c.getTree();
+        if (!path.isEmpty()) {
+            for (String name : raw(path).split("/")) {
+                Entry found = null;
+                for (Entry e : entries(Collections.singletonList(tree)).get(tree)) {
+                    if (e.raw.equals(name)) {
+                        found = e.under(prefix);
+                        break;
+                    }
+                }
+                if (found == null) {
+                    return Collections.emptyList();
+                }
+                if (!found.isTree()) {
+                    return Collections.singletonList(found);
+                }
+                prefix = found.raw;
+                tree = found.id;
+            }
+        }
+
+        List<Entry> out = new ArrayList<>();
+        Map<ObjectId, List<String>> level = new LinkedHashMap<>();
+        level.put(tree, Collections.singletonList(prefix));
+        while (!level.isEmpty()) {
+            Map<ObjectId, List<Entry>> entries = entries(level.keySet());
+            Map<ObjectId, List<String>> next = new LinkedHashMap<>();
+            for (Map.Entry<ObjectId, List<String>> t : level.entrySet()) {
+                List<Entry> children = entries.get(t.getKey());
+                if (children == null) {
+                    throw new MissingObjectException(t.getKey(), Constants.OBJ_TREE);
+                }
+                for (String at : t.getValue()) {
+                    for (Entry e : children) {
+                        Entry full = e.under(at);
+                        if (recursive && full.isTree()) {
+                            next.computeIfAbsent(full.id, k -> new ArrayList<>()).add(full.raw);
+                        } else {
+                            out.add(full);
+                        }
+                    }
+                }
+            }
+            level = next;
+        }
+
+        if (recursive) {
+            out.sort(Comparator.comparing(e -> e.raw));
+        }
+        return out;
+    }
+
+    // Indexes every commit in the graph that has not been indexed yet. A
+    // first parent outside the store is treated as absent, so the commit
+    // is recorded as adding everything it contains.
+    public int update() throws IOException {
+        List<GitSqlCommitGraph.Commit> pending = new ArrayList<>();
+        try (Connection connection = parent.getDataSource().getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT c.`hash`, c.`tree`, c.`parents`, c.`commit_time`, c.`generation`" +
+                             " FROM `git.commits` c LEFT JOIN `git.paths` p" +
+                             " ON p.`network` = c.`network` AND p.`commit` = c.`hash` AND p.`path` = ''" +
+                             " WHERE c.`network` = ? AND p.`commit` IS NULL"
+             )) {
+            statement.setInt(1, parent.getNetwork());
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    pending.add(GitSqlCommitGraph.Commit.read(results));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+        int indexed = 0;
+        int chunkSize = parent.getOptions().getBulkChunkSize();
+        for (int i = 0; i < pending.size(); i += chunkSize) {
+            indexed += index(pending.subList(i, Math.min(pending.size(), i + chunkSize)), false);
+        }
+        return indexed;
+    }
+
+    // Indexes commits the caller has just written. With strict set, commits
+    // whose first parent or trees are not in the store yet are left for a
+    // later update().
+    int index(Collection<GitSqlCommitGraph.Commit> commits, boolean strict) throws IOException {
+        Set<ObjectId> firstParents = new LinkedHashSet<>();
+        for (GitSqlCommitGraph.Commit c : commits) {
+            if (c.getParents().length > 0) {
+                firstParents.add(c.getParents()[0]);
+            }
+        }
+        Map<ObjectId, GitSqlCommitGraph.Commit> known = parent.getCommitGraph().lookup(firstParents);
+
+        List<Diff> level = new ArrayList<>();
+        Map<ObjectId, List<Entry>> rows = new LinkedHashMap<>();
+        for (GitSqlCommitGraph.Commit c : commits) {
+            ObjectId base = null;
+            if (c.getParents().length > 0) {
+                GitSqlCommitGraph.Commit p = known.get(c.getParents()[0]);
+                if (p != null) {
+                    base = p.getTree();
+                } else if (strict) {
+                    continue;
+                }
+            }
+            List<Entry> changes = new ArrayList<>();
+            changes.add(new Entry("", FileMode.TYPE_TREE, c.getTree()));
+            rows.put(c.getId(), changes);
+            level.add(new Diff(c.getId(), "", base, c.getTree()));
+        }
+
+        // One tree query per directory depth, shared by all the commits.
+        while (!level.isEmpty()) {
+            Set<ObjectId> trees = new LinkedHashSet<>();
+            for (Diff d : level) {
+                if (d.oldTree != null) {
+                    trees.add(d.oldTree);
+                }
+                if (d.newTree != null) {
+                    trees.add(d.newTree);
+                }
+            }
+            Map<ObjectId, List<Entry>> entries = entries(trees);
+
+            List<Diff> next = new ArrayList<>();
+            for (Diff d : level) {
+                List<Entry> changes = rows.get(d.commit);
+                if (changes == null) {
+                    continue;
+                }
+                List<Entry> before = d.oldTree != null ? entries.get(d.oldTree) : Collections.<Entry>emptyList();
+                List<Entry> after = d.newTree != null ? entries.get(d.newTree) : Collections.<Entry>emptyList();
+                if (before == null || after == null) {
+                    // Not written yet, or never will be; either way this
+                    // commit cannot be indexed now.
+                    rows.remove(d.commit);
+                    continue;
+                }
+                d.compare(before, after, changes, next);
+            }
+            level = next;
+        }
+
+        try (Connection connection = parent.getDataSource().getConnection();
+             PreparedStatement insert = connection.prepareStatement(INSERT_PATH)) {
+            int batched = 0;
+            for (Map.Entry<ObjectId, List<Entry>> r : rows.entrySet()) {
+                for (Entry e : r.getValue()) {
+                    if (e.raw.length() > MAX_PATH) {
+                        continue;
+                    }
+                    bind(insert, parent.getNetwork(), r.getKey(), e);
+                    insert.addBatch();
+                    if (++batched % parent.getOptions().getBulkChunkSize() == 0) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+            insert.executeBatch();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return rows.size();
+    }
+
+    private static class Diff {
+        final ObjectId commit;
+        final String prefix;
+        final ObjectId oldTree;
+        final ObjectId newTree;
+
+        Diff(ObjectId commit, String prefix, ObjectId oldTree, ObjectId newTree) {
+            this.commit = commit;
+            this.prefix = prefix;
+            this.oldTree = oldTree;
+            this.newTree = newTree;
+        }
+
+        void compare(List<Entry> before, List<Entry> after, List<Entry> changes, List<Diff> next) {
+            Map<String, Entry> old = new HashMap<>();
+            for (Entry e : before) {
+                old.put(e.raw, e);
+            }
+
+            for (Entry e : after) {
+                Entry o = old.remove(e.raw);
+                if (o != null && o.mode == e.mode && o.id.equals(e.id)) {
+                    continue;
+                }
+                Entry full = e.under(prefix);
+                ObjectId oldSubtree = o != null && o.isTree() ? o.id : null;
+                if (o != null && !o.isTree() && e.isTree()) {
+                    changes.add(new Entry(full.raw, 0, ObjectId.zeroId()));
+                }
+                if (e.isTree()) {
+                    next.add(new Diff(commit, full.raw, oldSubtree, e.id));
+                } else {
+                    changes.add(full);
+                    if (oldSubtree != null) {
+                        next.add(new Diff(commit, full.raw, oldSubtree, null));
+                    }
+                }
+            }
+
+            for (Entry o : old.values()) {
+                Entry full = o.under(prefix);
+                if (o.isTree()) {
+                    next.add(new Diff(commit, full.raw, o.id, null));
+                } else {
+                    changes.add(new Entry(full.raw, 0, ObjectId.zeroId()));
+                }
+            }
+        }
+    }
+
+    // Entries of the given trees. Trees without rows, such as those written
+    // before the index existed, are loaded once and indexed on the way.
+    // Trees missing from the store are absent from the result.
+    Map<ObjectId, List<Entry>> entries(Collection<ObjectId> trees) throws IOException {
+        Map<ObjectId, List<Entry>> found = new HashMap<>();
+        List<ObjectId> ids = new ArrayList<>(trees);
+        int chunkSize = parent.getOptions().getBulkChunkSize();
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            for (int i = 0; i < ids.size(); i += chunkSize) {
+                List<ObjectId> chunk = ids.subList(i, Math.min(ids.size(), i + chunkSize));
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT `tree`, `name`, `mode`, `object` FROM `git.trees`" +
+                                " WHERE `network` = ? AND `tree` IN " + GitSqlObjectDatabase.placeholders(chunk.size())
+                )) {
+                    statement.setInt(1, parent.getNetwork());
+                    for (int j = 0; j < chunk.size(); j++) {
+                        statement.setBytes(j + 2, GitSqlObjectDatabase.raw(chunk.get(j)));
+                    }
+                    try (ResultSet results = statement.executeQuery()) {
+                        while (results.next()) {
+                            found.computeIfAbsent(ObjectId.fromRaw(results.getBytes("tree")), k -> new ArrayList<>())
+                                    .add(new Entry(
+                                            new String(results.getBytes("name"), StandardCharsets.ISO_8859_1),
+                                            results.getInt("mode"),
+                                            ObjectId.fromRaw(results.getBytes("object"))
+                                    ));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+        List<ObjectId> unindexed = new ArrayList<>();
+        for (ObjectId id : ids) {
+            if (id.equals(EMPTY_TREE)) {
+                found.put(id, Collections.<Entry>emptyList());
+            } else if (!found.containsKey(id)) {
+                unindexed.add(id);
+            }
+        }
+        if (unindexed.isEmpty()) {
+            return found;
+        }
+
+        Map<ObjectId, List<Entry>> loaded = new LinkedHashMap<>();
+        try (ObjectReader reader = parent.newObjectReader()) {
+            AsyncObjectLoaderQueue<ObjectId> queue = reader.open(unindexed, false);
+            while (queue.next()) {
+                List<Entry> entries = parse(queue.open().getCachedBytes(Integer.MAX_VALUE));
+                found.put(queue.getObjectId(), entries);
+                if (indexable(entries)) {
+                    loaded.put(queue.getObjectId(), entries);
+                }
+            }
+        }
+
+        try (Connection connection = parent.getDataSource().getConnection();
+             PreparedStatement insert = connection.prepareStatement(INSERT_TREE)) {
+            for (Map.Entry<ObjectId, List<Entry>> t : loaded.entrySet()) {
+                for (Entry e : t.getValue()) {
+                    bind(insert, parent.getNetwork(), t.getKey(), e);
+                    insert.addBatch();
+                }
+            }
+            insert.executeBatch();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return found;
+    }
+}
@@ -1,18 +1,37 @@
 package run.fork.git.flex.sqldb;
 
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.events.RefsChangedEvent;
+import org.eclipse.jgit.internal.JGitText;
 import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
 
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class GitSqlRefDatabase extends RefDatabase {
+    public static final int SCHEMA_VERSION = 5;
+
     private final GitSqlRepository parent;
+    private volatile Snapshot snapshot;
 
     public GitSqlRefDatabase(GitSqlRepository parent) {
         this.parent = parent;
@@ -20,44 +39,308 @@ public class GitSqlRefDatabase extends RefDatabase {
 
     @Override
     public void create() throws IOException {
-        try {
-            Statement creates = parent.getConnection().createStatement();
+        if (parent.isHosted()) {
+            try (Connection connection = parent.getDataSource().getConnection()) {
+                if (SqlSchema.tableExists(connection, "git.refs")) {
+                    clear(connection);
+                    snapshot = null;
+                    return;
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
 
-            creates.execute("DROP TABLE IF EXISTS `git.refs`");
+        try (Connection connection = parent.getDataSource().getConnection();
+             Statement creates = connection.createStatement()) {
+            creates.execute("DROP TABLE IF EXISTS `git.refs`, `git.ref_version`, `git.reflog`");
 
             creates.execute(
                     "CREATE TABLE `git.refs` (\n" +
-                            "  `name` VARCHAR(512) CHARACTER SET ascii COLLATE ascii_bin NOT NULL COMMENT 'Reference Name' PRIMARY KEY,\n" +
+                            "  `repository` INT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Repository',\n" +
+                            "  `name` VARCHAR(512) CHARACTER SET ascii COLLATE ascii_bin NOT NULL COMMENT 'Reference Name',\n" +
                             "  `symbolic` BOOLEAN NOT NULL COMMENT 'Indicates if the Reference is Symbolic',\n" +
-                            "  `target` VARCHAR(255) COLLATE utf8mb4_unicode_ci NOT NULL COMMENT 'Reference Target'\n" +
+                            "  `target` VARCHAR(255) COLLATE utf8mb4_unicode_ci NOT NULL COMMENT 'Reference Target',\n" +
+                            "  `peeled` VARCHAR(40) CHARACTER SET ascii COLLATE ascii_bin NULL COMMENT 'Peeled Target',\n" +
+                            "  PRIMARY KEY (`repository`, `name`)\n" +
                             ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT 'Git References';"
             );
+            createVersionTable(connection);
+            GitSqlReflog.createTable(connection);
+            SqlSchema.setVersion(connection, SqlSchema.REFS, SCHEMA_VERSION);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        snapshot = null;
+    }
+
+    // The tables are shared with the host's other repositories, so only this
+    // repository's rows go. The version moves on rather than starting over,
+    // so no snapshot taken before can pass for current.
+    private void clear(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+        for (String table : new String[]{"git.refs", "git.reflog"}) {
+            try (PreparedStatement delete = connection.prepareStatement(
+                    "DELETE FROM `" + table + "` WHERE `repository` = ?"
+            )) {
+                delete.setInt(1, parent.getRepositoryId());
+                delete.executeUpdate();
+            }
+        }
+        bumpVersion(connection);
+        connection.commit();
+    }
+
+    // Gives a new fork its parent's refs, in one transaction with the
+    // version bump that makes them visible.
+    void copyFrom(int repository) throws IOException {
+        try (Connection connection = parent.getDataSource().getConnection();
+             PreparedStatement copy = connection.prepareStatement(
+                     "INSERT INTO `git.refs` (`repository`, `name`, `symbolic`, `target`, `peeled`)" +
+                             " SELECT ?, `name`, `symbolic`, `target`, `peeled` FROM `git.refs` WHERE `repository` = ?"
+             )) {
+            connection.setAutoCommit(false);
+            copy.setInt(1, parent.getRepositoryId());
+            copy.setInt(2, repository);
+            copy.executeUpdate();
+            bumpVersion(connection);
+            connection.commit();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        snapshot = null;
+    }
+
+    public void upgrade() throws IOException {
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            if (SqlSchema.getVersion(connection, SqlSchema.REFS) < 2) {
+                createVersionTable(connection);
+                SqlSchema.setVersion(connection, SqlSchema.REFS, 2);
+            }
+
+            if (SqlSchema.getVersion(connection, SqlSchema.REFS) < 3) {
+                try (Statement alter = connection.createStatement()) {
+                    alter.execute(
+                            "ALTER TABLE `git.refs` ADD COLUMN `peeled` VARCHAR(40) CHARACTER SET ascii COLLATE ascii_bin" +
+                                    " NULL COMMENT 'Peeled Target' AFTER `target`"
+                    );
+                }
+                SqlSchema.setVersion(connection, SqlSchema.REFS, 3);
+            }
+
+            if (SqlSchema.getVersion(connection, SqlSchema.REFS) < 4) {
+                GitSqlReflog.createTable(connection);
+                SqlSchema.setVersion(connection, SqlSchema.REFS, 4);
+            }
+
+            if (SqlSchema.getVersion(connection, SqlSchema.REFS) < 5) {
+                // Existing rows become repository 0, the id of a repository
+                // that has the tables to itself. Tables created by the steps
+                // above already have the column.
+                try (Statement alter = connection.createStatement()) {
+                    if (!SqlSchema.columnExists(connection, "git.refs", "repository")) {
+                        alter.execute(
+                                "ALTER TABLE `git.refs`" +
+                                        " ADD COLUMN `repository` INT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Repository' FIRST," +
+                                        " DROP PRIMARY KEY, ADD PRIMARY KEY (`repository`, `name`)"
+                        );
+                    }
+                    if (!SqlSchema.columnExists(connection, "git.reflog", "repository")) {
+                        alter.execute(
+                                "ALTER TABLE `git.reflog`" +
+                                        " ADD COLUMN `repository` INT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Repository' AFTER `id`," +
+                                        " DROP KEY `name`, ADD KEY `name` (`repository`, `name`, `id`)"
+                        );
+                    }
+                    if (!SqlSchema.columnExists(connection, "git.ref_version", "repository")) {
+                        alter.execute(
+                                "ALTER TABLE `git.ref_version`" +
+                                        " CHANGE `id` `repository` INT UNSIGNED NOT NULL COMMENT 'Repository'"
+                        );
+                        alter.execute("UPDATE `git.ref_version` SET `repository` = 0");
+                    }
+                }
+                SqlSchema.setVersion(connection, SqlSchema.REFS, 5);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+        // Rows from before the column stay unpeeled until this fills them
+        // in; peeling reads objects, so it runs on a connection of its own.
+        Map<String, String> unpeeled = new HashMap<>();
+        try (Connection connection = parent.getDataSource().getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT `name`, `target` FROM `git.refs`" +
+                             " WHERE `repository` = ? AND `symbolic` = FALSE AND `peeled` IS NULL"
+             )) {
+            statement.setInt(1, parent.getRepositoryId());
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    unpeeled.put(results.getString("name"), results.getString("target"));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        if (unpeeled.isEmpty()) {
+            return;
+        }
+
+        Map<String, ObjectId> peeled = new HashMap<>();
+        for (Map.Entry<String, String> ref : unpeeled.entrySet()) {
+            ObjectId id = peelTarget(ObjectId.fromString(ref.getValue()));
+            if (id != null) {
+                peeled.put(ref.getKey(), id);
+            }
+        }
+
+        try (Connection connection = parent.getDataSource().getConnection();
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE `git.refs` SET `peeled` = ? WHERE `repository` = ? AND `name` = ? AND `target` = ?"
+             )) {
+            connection.setAutoCommit(false);
+            for (Map.Entry<String, ObjectId> ref : peeled.entrySet()) {
+                update.setString(1, ref.getValue().name());
+                update.setInt(2, parent.getRepositoryId());
+                update.setString(3, ref.getKey());
+                update.setString(4, unpeeled.get(ref.getKey()));
+                update.addBatch();
+            }
+            update.executeBatch();
+            bumpVersion(connection);
+            connection.commit();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // The id the ref ultimately names once annotated tags are followed, or
+    // null when the object is not in the store.
+    private ObjectId peelTarget(ObjectId id) throws IOException {
+        try (RevWalk walk = new RevWalk(parent)) {
+            return walk.peel(walk.parseAny(id)).copy();
+        } catch (MissingObjectException e) {
+            return null;
+        }
+    }
+
+    // A counter per repository bumped in the same transaction as every ref
+    // change, so readers can tell whether their snapshot is stale with one
+    // lookup. A repository's row appears with its first ref change.
+    private static void createVersionTable(Connection connection) throws SQLException {
+        try (Statement creates = connection.createStatement()) {
+            creates.execute(
+                    "CREATE TABLE IF NOT EXISTS `git.ref_version` (\n" +
+                            "  `repository` INT UNSIGNED NOT NULL COMMENT 'Repository' PRIMARY KEY,\n" +
+                            "  `version` BIGINT NOT NULL COMMENT 'Reference Version'\n" +
+                            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Reference Version'"
+            );
+        }
+    }
+
+    private long readVersion(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT `version` FROM `git.ref_version` WHERE `repository` = ?"
+        )) {
+            statement.setInt(1, parent.getRepositoryId());
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getLong("version") : 0;
+            }
+        }
+    }
+
+    private void bumpVersion(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO `git.ref_version` (`repository`, `version`) VALUES (?, 1)" +
+                        " ON DUPLICATE KEY UPDATE `version` = `version` + 1"
+        )) {
+            statement.setInt(1, parent.getRepositoryId());
+            statement.executeUpdate();
+        }
+    }
 
-            creates.close();
+    // Revalidates the snapshot against the version counter and reloads all
+    // refs only when it has moved. Listeners hear about the change once the
+    // connection is back in the pool, since they are likely to read refs.
+    Snapshot current() throws IOException {
+        Snapshot previous = snapshot;
+        Snapshot next = previous;
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            // Version and rows are read in one transaction so they agree.
+            connection.setAutoCommit(false);
+            long version = readVersion(connection);
+            if (previous == null || previous.version != version
+                    || (previous.rows == null && parent.getOptions().isRefCache())) {
+                next = new Snapshot(version, parent.getOptions().isRefCache() ? scan(connection, ALL) : null);
+            }
+            connection.commit();
         } catch (SQLException e) {
             throw new IOException(e);
         }
+
+        if (next != previous) {
+            snapshot = next;
+            if (previous != null && previous.version != next.version) {
+                parent.fireEvent(new RefsChangedEvent());
+            }
+        }
+        return next;
     }
 
     @Override
     public boolean isNameConflicting(String name) throws IOException {
-        try {
-            PreparedStatement statement = parent.getConnection().prepareStatement(
-                    "SELECT `name` FROM `git.refs` WHERE `name` = ?"
-            );
-            statement.setString(1, name);
-            ResultSet results = statement.executeQuery();
-            boolean conflicts = false;
-            if (results.next()) {
-                conflicts = true;
-            }
-            statement.close();
-            return conflicts;
+        // A ref may not sit where another ref's directory is, or the other
+        // way around; the ref itself existing is not a conflict.
+        List<String> parents = parentNames(name);
+        String children = name.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "/%";
+        try (Connection connection = parent.getDataSource().getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                    "SELECT `name` FROM `git.refs` WHERE `repository` = ? AND (`name` LIKE ? ESCAPE '!'" +
+                            (parents.isEmpty() ? "" : " OR `name` IN " + GitSqlObjectDatabase.placeholders(parents.size())) +
+                            ") LIMIT 1"
+            )) {
+            statement.setInt(1, parent.getRepositoryId());
+            statement.setString(2, children);
+            for (int i = 0; i < parents.size(); i++) {
+                statement.setString(i + 3, parents.get(i));
+            }
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next();
+            }
         } catch (SQLException e) {
             throw new IOException(e);
         }
     }
 
+    private static List<String> parentNames(String name) {
+        List<String> parents = new ArrayList<>();
+        for (int slash = name.indexOf('/'); slash > 0; slash = name.indexOf('/', slash + 1)) {
+            parents.add(name.substring(0, slash));
+        }
+        return parents;
+    }
+
+    private static boolean isNameConflicting(String name, NavigableSet<String> names) {
+        for (String p : parentNames(name)) {
+            if (names.contains(p)) {
+                return true;
+            }
+        }
+        String child = names.ceiling(name + '/');
+        return child != null && child.startsWith(name + '/');
+    }
+
+    @Override
+    public boolean performsAtomicTransactions() {
+        return true;
+    }
+
+    @Override
+    public BatchRefUpdate newBatchUpdate() {
+        return new SqlBatchRefUpdate();
+    }
+
     @Override
     public RefUpdate newUpdate(String name, boolean detach) throws IOException {
         Ref ref = getRef(name);
@@ -76,70 +359,141 @@ public class GitSqlRefDatabase extends RefDatabase {
 
     @Override
     public Ref getRef(String name) throws IOException {
-        try {
-            PreparedStatement statement = parent.getConnection().prepareStatement(
-                    "SELECT `target`, `symbolic` FROM `git.refs` WHERE `name` = ?"
-            );
-            statement.setString(1, name);
-            ResultSet results = statement.executeQuery();
+        if (parent.getOptions().isRefCache()) {
+            Map<String, Row> rows = current().rows;
+            return rows.containsKey(name) ? toRef(name, rows, 0) : null;
+        }
 
-            if (!results.next()) {
-                statement.close();
+        Map<String, Row> rows = new HashMap<>();
+        try (Connection connection = parent.getDataSource().getConnection()) {
+            load(connection, Collections.singletonList(name), rows);
+            if (!rows.containsKey(name)) {
                 return null;
             }
+            loadTargets(connection, rows);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return toRef(name, rows, 0);
+    }
+
+    @Override
+    public Map<String, Ref> getRefs(String prefix) throws IOException {
+        Map<String, Row> rows;
+        Map<String, Row> matching;
+        if (parent.getOptions().isRefCache()) {
+            TreeMap<String, Row> all = current().rows;
+            rows = all;
+            matching = all.tailMap(prefix);
+        } else {
+            try (Connection connection = parent.getDataSource().getConnection()) {
+                rows = scan(connection, prefix);
+                matching = new TreeMap<>(rows);
+                loadTargets(connection, rows);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
 
-            boolean symbolic = results.getBoolean("symbolic");
-            String target = results.getString("target");
-            statement.close();
+        HashMap<String, Ref> refs = new HashMap<>();
+        for (String name : matching.keySet()) {
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            refs.put(name, toRef(name, rows, 0));
+        }
+        return refs;
+    }
 
-            if (symbolic) {
-                Ref targetRef = getRef(target);
-                if (targetRef == null) {
-                    throw new IOException("Failed to link " + name + " to " + target + ": Target not found.");
+    private TreeMap<String, Row> scan(Connection connection, String prefix) throws SQLException {
+        // The primary key is ascii_bin, so the prefix match is a range scan.
+        String pattern = prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+
+        TreeMap<String, Row> rows = new TreeMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT `name`, `symbolic`, `target`, `peeled` FROM `git.refs`" +
+                        " WHERE `repository` = ? AND `name` LIKE ? ESCAPE '!'"
+        )) {
+            statement.setInt(1, parent.getRepositoryId());
+            statement.setString(2, pattern);
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    rows.put(results.getString("name"), new Row(results));
                 }
-                return new SymbolicRef(name, targetRef);
-            } else {
-                return new ObjectIdRef(Ref.Storage.LOOSE, name, ObjectId.fromString(target)) {
-                    @Override
-                    public ObjectId getPeeledObjectId() {
-                        return null;
-                    }
+            }
+        }
+        return rows;
+    }
 
-                    @Override
-                    public boolean isPeeled() {
-                        return false;
+    private void load(Connection connection, Collection<String> names, Map<String, Row> rows) throws SQLException {
+        List<String> chunk = new ArrayList<>(names);
+        int chunkSize = parent.getOptions().getBulkChunkSize();
+        for (int i = 0; i < chunk.size(); i += chunkSize) {
+            List<String> part = chunk.subList(i, Math.min(chunk.size(), i + chunkSize));
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT `name`, `symbolic`, `target`, `peeled` FROM `git.refs` WHERE `repository` = ? AND `name` IN "
+                            + GitSqlObjectDatabase.placeholders(part.size())
+            )) {
+                statement.setInt(1, parent.getRepositoryId());
+                for (int j = 0; j < part.size(); j++) {
+                    statement.setString(j + 2, part.get(j));
+                }
+                try (ResultSet results = statement.executeQuery()) {
+                    while (results.next()) {
+                        rows.put(results.getString("name"), new Row(results));
                     }
-                };
+                }
             }
-        } catch (SQLException e) {
-            throw new IOException(e);
         }
     }
 
-    @Override
-    public Map<String, Ref> getRefs(String prefix) throws IOException {
-        try {
-            PreparedStatement statement = parent.getConnection().prepareStatement(
-                    "SELECT `name` FROM `git.refs` WHERE `name` LIKE ?"
-            );
-            statement.setString(1, prefix + "%");
-            ResultSet results = statement.executeQuery();
+    // Symbolic refs usually point at refs already loaded; the rest are
+    // fetched together, one query per level of indirection.
+    private void loadTargets(Connection connection, Map<String, Row> rows) throws SQLException {
+        Set<String> tried = new HashSet<>();
+        for (int depth = 0; depth < MAX_SYMBOLIC_REF_DEPTH; depth++) {
+            Set<String> missing = new HashSet<>();
+            for (Row row : rows.values()) {
+                if (row.symbolic && !rows.containsKey(row.target) && tried.add(row.target)) {
+                    missing.add(row.target);
+                }
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+            load(connection, missing, rows);
+        }
+    }
 
-            if (!results.next()) {
-                statement.close();
-                return null;
+    private Ref toRef(String name, Map<String, Row> rows, int depth) {
+        Row row = rows.get(name);
+        if (row == null) {
+            return new ObjectIdRef.Unpeeled(Ref.Storage.NEW, name, null);
+        }
+
+        if (row.symbolic) {
+            Ref targetRef;
+            if (depth >= MAX_SYMBOLIC_REF_DEPTH) {
+                targetRef = new ObjectIdRef.Unpeeled(Ref.Storage.NEW, row.target, null);
+            } else {
+                targetRef = toRef(row.target, rows, depth + 1);
+            }
+            return new SymbolicRef(name, targetRef);
+        } else {
+            ObjectId id = ObjectId.fromString(row.target);
+            if (row.peeled == null) {
+                return new ObjectIdRef.Unpeeled(Ref.Storage.LOOSE, name, id);
             }
+            return peeledRef(name, id, ObjectId.fromString(row.peeled));
+        }
+    }
 
-            HashMap<String, Ref> refs = new HashMap<>();
-            do {
-                String name = results.getString("name");
-                refs.put(name, getRef(name));
-            } while(results.next());
-            statement.close();
-            return refs;
-        } catch (SQLException e) {
-            throw new IOException(e);
+    // A ref that names the peeled object itself is not an annotated tag.
+    private static Ref peeledRef(String name, ObjectId id, ObjectId peeled) {
+        if (peeled.equals(id)) {
+            return new ObjectIdRef.PeeledNonTag(Ref.Storage.LOOSE, name, id);
         }
+        return new ObjectIdRef.PeeledTag(Ref.Storage.LOOSE, name, id, peeled);
     }
 
     @Override
@@ -149,19 +503,56 @@ public class GitSqlRefDatabase extends RefDatabase {
 
     @Override
     public Ref peel(Ref ref) throws IOException {
-        return null;
+        Ref leaf = ref.getLeaf();
+        if (leaf.isPeeled() || leaf.getObjectId() == null) {
+            return ref;
+        }
+
+        // Only rows written before the peeled column reach this point.
+        ObjectId peeled = peelTarget(leaf.getObjectId());
+        if (peeled == null) {
+            return ref;
+        }
+        return recreate(ref, peeledRef(leaf.getName(), leaf.getObjectId(), peeled));
+    }
+
+    private static Ref recreate(Ref old, Ref leaf) {
+        if (old.isSymbolic()) {
+            return new SymbolicRef(old.getName(), recreate(old.getTarget(), leaf));
+        }
+        return leaf;
     }
 
     @Override
     public void close() {
-        try {
-            parent.getConnection().close();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+    }
+
+    static class Snapshot {
+        final long version;
+        final TreeMap<String, Row> rows;
+
+        Snapshot(long version, TreeMap<String, Row> rows) {
+            this.version = version;
+            this.rows = rows;
+        }
+    }
+
+    private static class Row {
+        final boolean symbolic;
+        final String target;
+        final String peeled;
+
+        Row(ResultSet results) throws SQLException {
+            this.symbolic = results.getBoolean("symbolic");
+            this.target = results.getString("target");
+            this.peeled = results.getString("peeled");
         }
     }
 
     public class SqlRefUpdate extends RefUpdate {
+        private String dstName;
+        private String expected;
+
         public SqlRefUpdate(final Ref ref) {
             super(ref);
         }
@@ -176,8 +567,27 @@ public class GitSqlRefDatabase extends RefDatabase {
             return parent;
         }
 
+        // Nothing is held between tryLock() and the write. Instead the write
+        // only applies while the row still has the target read here, and
+        // reports LOCK_FAILURE when another writer got there first.
         @Override
         protected boolean tryLock(boolean deref) throws IOException {
+            dstName = deref ? getRef().getLeaf().getName() : getRef().getName();
+
+            Map<String, Row> rows = new HashMap<>();
+            try (Connection connection = getRepository().getDataSource().getConnection()) {
+                load(connection, Collections.singletonList(dstName), rows);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+
+            Row row = rows.get(dstName);
+            expected = row != null ? row.target : null;
+            if (row == null) {
+                setOldObjectId(null);
+            } else if (!row.symbolic) {
+                setOldObjectId(ObjectId.fromString(row.target));
+            }
             return true;
         }
 
@@ -185,23 +595,63 @@ public class GitSqlRefDatabase extends RefDatabase {
         protected void unlock() {
         }
 
+        // Both go through a walk that checks fast-forwards against the
+        // commit graph, whatever walk the caller handed in.
+        @Override
+        public Result update(RevWalk walk) throws IOException {
+            try (RevWalk ancestry = parent.getCommitGraph().newRevWalk(walk.getObjectReader())) {
+                return super.update(ancestry);
+            }
+        }
+
+        @Override
+        public Result delete(RevWalk walk) throws IOException {
+            try (RevWalk ancestry = parent.getCommitGraph().newRevWalk(walk.getObjectReader())) {
+                return super.delete(ancestry);
+            }
+        }
+
         @Override
         protected Result doUpdate(Result status) throws IOException {
-            try {
-                PreparedStatement statement = getRepository().getConnection().prepareStatement(
-                        "INSERT INTO `git.refs` (`target`, `symbolic`, `name`) VALUES (?, ?, ?)" +
-                                " ON DUPLICATE KEY UPDATE `target` = ?, `symbolic` = ?"
-                );
-
-                statement.setString(1, getNewObjectId().name());
-                statement.setBoolean(2, getRef().isSymbolic());
-                statement.setString(3, getRef().getName());
-                statement.setString(4, getNewObjectId().name());
-                statement.setBoolean(5, getRef().isSymbolic());
+            // Peeled before the connection is taken, since peeling reads
+            // objects through connections of its own.
+            ObjectId peeled = peelTarget(getNewObjectId());
+            String peeledName = peeled != null ? peeled.name() : null;
+
+            try (Connection connection = getRepository().getDataSource().getConnection()) {
+                connection.setAutoCommit(false);
+                int updated;
+                if (expected == null) {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "INSERT IGNORE INTO `git.refs` (`repository`, `name`, `symbolic`, `target`, `peeled`)" +
+                                    " VALUES (?, ?, FALSE, ?, ?)"
+                    )) {
+                        statement.setInt(1, parent.getRepositoryId());
+                        statement.setString(2, dstName);
+                        statement.setString(3, getNewObjectId().name());
+                        statement.setString(4, peeledName);
+                        updated = statement.executeUpdate();
+                    }
+                } else {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "UPDATE `git.refs` SET `symbolic` = FALSE, `target` = ?, `peeled` = ?" +
+                                    " WHERE `repository` = ? AND `name` = ? AND `target` = ?"
+                    )) {
+                        statement.setString(1, getNewObjectId().name());
+                        statement.setString(2, peeledName);
+                        statement.setInt(3, parent.getRepositoryId());
+                        statement.setString(4, dstName);
+                        statement.setString(5, expected);
+                        updated = statement.executeUpdate();
+                    }
+                }
 
-                if (statement.executeUpdate() == 0) {
-                    return Result.REJECTED;
+                if (updated == 0) {
+                    return Result.LOCK_FAILURE;
                 }
+                log(connection, status, getNewObjectId(), true);
+                bumpVersion(connection);
+                connection.commit();
                 return status;
             } catch (SQLException e) {
                 throw new IOException(e);
@@ -210,15 +660,24 @@ public class GitSqlRefDatabase extends RefDatabase {
 
         @Override
         protected Result doDelete(Result status) throws IOException {
-            try {
-                PreparedStatement statement = getRepository().getConnection().prepareStatement(
-                        "DELETE FROM `git.refs` WHERE `name` = ?"
-                );
+            if (expected == null) {
+                return status;
+            }
 
-                statement.setString(1, getRef().getName());
+            try (Connection connection = getRepository().getDataSource().getConnection();
+                 PreparedStatement statement = connection.prepareStatement(
+                        "DELETE FROM `git.refs` WHERE `repository` = ? AND `name` = ? AND `target` = ?"
+                )) {
+                connection.setAutoCommit(false);
+                statement.setInt(1, parent.getRepositoryId());
+                statement.setString(2, dstName);
+                statement.setString(3, expected);
                 if (statement.executeUpdate() == 0) {
-                    return Result.REJECTED;
+                    return Result.LOCK_FAILURE;
                 }
+                log(connection, null, ObjectId.zeroId(), true);
+                bumpVersion(connection);
+                connection.commit();
                 return status;
             } catch (SQLException e) {
                 throw new IOException(e);
@@ -227,21 +686,314 @@ public class GitSqlRefDatabase extends RefDatabase {
 
         @Override
         protected Result doLink(String target) throws IOException {
-            try {
-                PreparedStatement statement = getRepository().getConnection().prepareStatement(
-                        "INSERT INTO `git.refs` (`name`, `symbolic`, `target`) VALUES (?, ?, ?)"
-                );
-
-                statement.setString(1, getRef().getName());
-                statement.setBoolean(2, true);
-                statement.setString(3, target);
-                if (!statement.execute()) {
+            try (Connection connection = getRepository().getDataSource().getConnection();
+                 PreparedStatement statement = connection.prepareStatement(
+                        "INSERT INTO `git.refs` (`repository`, `name`, `symbolic`, `target`) VALUES (?, ?, ?, ?)" +
+                                " ON DUPLICATE KEY UPDATE `symbolic` = ?, `target` = ?, `peeled` = NULL"
+                )) {
+                connection.setAutoCommit(false);
+                statement.setInt(1, parent.getRepositoryId());
+                statement.setString(2, getRef().getName());
+                statement.setBoolean(3, true);
+                statement.setString(4, target);
+                statement.setBoolean(5, true);
+                statement.setString(6, target);
+                // execute() reports whether there is a result set, which an
+                // INSERT never has; the link has to be judged by row count
+                // now that it only lands on commit.
+                if (statement.executeUpdate() == 0) {
                     return Result.REJECTED;
                 }
-                return Result.NEW;
+                log(connection, null, getNewObjectId(), false);
+                bumpVersion(connection);
+                connection.commit();
+                return getRef().getStorage() == Ref.Storage.NEW ? Result.NEW : Result.FORCED;
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        // Appended on the update's own connection, so the entry commits or
+        // rolls back together with the ref. An update made through a
+        // symbolic ref is logged under both names, as git does for HEAD.
+        private void log(Connection connection, Result status, ObjectId newId, boolean deref) throws SQLException {
+            String message = getRefLogMessage();
+            if (message == null) {
+                return;
+            }
+            if (status != null && isRefLogIncludingResult()) {
+                String result = resultString(status);
+                if (result != null) {
+                    message = message.isEmpty() ? result : message + ": " + result;
+                }
+            }
+
+            PersonIdent who = getRefLogIdent() != null ? getRefLogIdent() : new PersonIdent(parent);
+            List<GitSqlReflog.Entry> entries = new ArrayList<>();
+            entries.add(new GitSqlReflog.Entry(getName(), getOldObjectId(), newId, who, message));
+            if (deref && !dstName.equals(getName())) {
+                entries.add(new GitSqlReflog.Entry(dstName, getOldObjectId(), newId, who, message));
+            }
+            GitSqlReflog.append(connection, parent.getRepositoryId(), entries, parent.getOptions().getBulkChunkSize());
+        }
+    }
+
+    private static String resultString(RefUpdate.Result status) {
+        switch (status) {
+            case FORCED:
+                return "forced-update";
+            case FAST_FORWARD:
+                return "fast forward";
+            case NEW:
+                return "created";
+            default:
+                return null;
+        }
+    }
+
+    private static String resultString(ReceiveCommand.Type type) {
+        switch (type) {
+            case UPDATE_NONFASTFORWARD:
+                return "forced-update";
+            case UPDATE:
+                return "fast forward";
+            case CREATE:
+                return "created";
+            default:
+                return null;
+        }
+    }
+
+    // Applies every command in one transaction. The rows are locked and
+    // checked against each command's old id first, then written with one
+    // multi-row statement per kind of change.
+    public class SqlBatchRefUpdate extends BatchRefUpdate {
+        SqlBatchRefUpdate() {
+            super(GitSqlRefDatabase.this);
+        }
+
+        @Override
+        public void execute(RevWalk walk, ProgressMonitor monitor, List<String> options) throws IOException {
+            if (!blockUntilTimestamps(Duration.ofSeconds(5))) {
+                return;
+            }
+
+            List<ReceiveCommand> pending = new ArrayList<>();
+            for (ReceiveCommand cmd : getCommands()) {
+                if (cmd.getResult() == ReceiveCommand.Result.NOT_ATTEMPTED) {
+                    pending.add(cmd);
+                }
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            monitor.beginTask(JGitText.get().updatingReferences, pending.size());
+
+            // Everything that reads objects or refs happens before the
+            // transaction, which must not wait on a second connection.
+            Map<String, Ref> refs = getRefs(ALL);
+            NavigableSet<String> names = new TreeSet<>(refs.keySet());
+            Map<ReceiveCommand, String> targets = new HashMap<>();
+            Map<ReceiveCommand, String> peeled = new HashMap<>();
+            for (ReceiveCommand cmd : pending) {
+                Ref current = refs.get(cmd.getRefName());
+                String name = current != null ? current.getLeaf().getName() : cmd.getRefName();
+                targets.put(cmd, name);
+                if (cmd.getType() == ReceiveCommand.Type.DELETE) {
+                    names.remove(name);
+                }
+            }
+            try (RevWalk ancestry = parent.getCommitGraph().newRevWalk(walk.getObjectReader())) {
+                for (ReceiveCommand cmd : pending) {
+                    if (cmd.getType() == ReceiveCommand.Type.DELETE) {
+                        continue;
+                    }
+                    try {
+                        peeled.put(cmd, walk.peel(walk.parseAny(cmd.getNewId())).name());
+                        cmd.updateType(ancestry);
+                    } catch (MissingObjectException e) {
+                        cmd.setResult(ReceiveCommand.Result.REJECTED_MISSING_OBJECT, e.getMessage());
+                        continue;
+                    }
+                    if (cmd.getType() == ReceiveCommand.Type.UPDATE_NONFASTFORWARD && !isAllowNonFastForwards()) {
+                        cmd.setResult(ReceiveCommand.Result.REJECTED_NONFASTFORWARD);
+                    } else if (cmd.getType() == ReceiveCommand.Type.CREATE) {
+                        if (isNameConflicting(targets.get(cmd), names)) {
+                            cmd.setResult(ReceiveCommand.Result.LOCK_FAILURE);
+                        } else {
+                            names.add(targets.get(cmd));
+                        }
+                    }
+                }
+            }
+            if (!prepared(pending)) {
+                monitor.endTask();
+                return;
+            }
+
+            List<ReceiveCommand> ready = new ArrayList<>();
+            for (ReceiveCommand cmd : pending) {
+                if (cmd.getResult() == ReceiveCommand.Result.NOT_ATTEMPTED) {
+                    ready.add(cmd);
+                }
+            }
+
+            try (Connection connection = parent.getDataSource().getConnection()) {
+                connection.setAutoCommit(false);
+
+                Map<String, Row> rows = new HashMap<>();
+                lock(connection, ready, targets, rows);
+                for (ReceiveCommand cmd : ready) {
+                    Row row = rows.get(targets.get(cmd));
+                    boolean matches;
+                    if (cmd.getType() == ReceiveCommand.Type.CREATE) {
+                        matches = row == null;
+                    } else if (cmd.getType() == ReceiveCommand.Type.DELETE && cmd.getOldId().equals(ObjectId.zeroId())) {
+                        matches = row != null;
+                    } else {
+                        matches = row != null && !row.symbolic && row.target.equals(cmd.getOldId().name());
+                    }
+                    if (!matches) {
+                        cmd.setResult(ReceiveCommand.Result.LOCK_FAILURE);
+                    }
+                }
+                if (!prepared(pending)) {
+                    monitor.endTask();
+                    return;
+                }
+
+                List<ReceiveCommand> writes = new ArrayList<>();
+                List<String> deletes = new ArrayList<>();
+                for (ReceiveCommand cmd : ready) {
+                    if (cmd.getResult() != ReceiveCommand.Result.NOT_ATTEMPTED) {
+                        continue;
+                    }
+                    if (cmd.getType() == ReceiveCommand.Type.DELETE) {
+                        deletes.add(targets.get(cmd));
+                    } else {
+                        writes.add(cmd);
+                    }
+                }
+
+                int chunkSize = parent.getOptions().getBulkChunkSize();
+                for (int i = 0; i < writes.size(); i += chunkSize) {
+                    List<ReceiveCommand> chunk = writes.subList(i, Math.min(writes.size(), i + chunkSize));
+                    StringBuilder sql = new StringBuilder(
+                            "INSERT INTO `git.refs` (`repository`, `name`, `symbolic`, `target`, `peeled`) VALUES ");
+                    for (int j = 0; j < chunk.size(); j++) {
+                        sql.append(j == 0 ? "" : ", ").append("(?, ?, FALSE, ?, ?)");
+                    }
+                    sql.append(" ON DUPLICATE KEY UPDATE `symbolic` = VALUES(`symbolic`), `target` = VALUES(`target`)," +
+                            " `peeled` = VALUES(`peeled`)");
+                    try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                        int p = 1;
+                        for (ReceiveCommand cmd : chunk) {
+                            statement.setInt(p++, parent.getRepositoryId());
+                            statement.setString(p++, targets.get(cmd));
+                            statement.setString(p++, cmd.getNewId().name());
+                            statement.setString(p++, peeled.get(cmd));
+                        }
+                        statement.executeUpdate();
+                    }
+                }
+                for (int i = 0; i < deletes.size(); i += chunkSize) {
+                    List<String> chunk = deletes.subList(i, Math.min(deletes.size(), i + chunkSize));
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "DELETE FROM `git.refs` WHERE `repository` = ? AND `name` IN "
+                                    + GitSqlObjectDatabase.placeholders(chunk.size())
+                    )) {
+                        statement.setInt(1, parent.getRepositoryId());
+                        for (int j = 0; j < chunk.size(); j++) {
+                            statement.setString(j + 2, chunk.get(j));
+                        }
+                        statement.executeUpdate();
+                    }
+                }
+                if (!isRefLogDisabled()) {
+                    GitSqlReflog.append(connection, parent.getRepositoryId(), logEntries(ready, targets), chunkSize);
+                }
+
+                bumpVersion(connection);
+                connection.commit();
             } catch (SQLException e) {
+                for (ReceiveCommand cmd : ready) {
+                    if (cmd.getResult() == ReceiveCommand.Result.NOT_ATTEMPTED) {
+                        cmd.setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON,
+                                MessageFormat.format(JGitText.get().lockError, e.getMessage()));
+                    }
+                }
                 throw new IOException(e);
             }
+
+            for (ReceiveCommand cmd : ready) {
+                if (cmd.getResult() == ReceiveCommand.Result.NOT_ATTEMPTED) {
+                    cmd.setResult(ReceiveCommand.Result.OK);
+                }
+            }
+            monitor.update(pending.size());
+            monitor.endTask();
+        }
+
+        private List<GitSqlReflog.Entry> logEntries(List<ReceiveCommand> ready, Map<ReceiveCommand, String> targets) {
+            PersonIdent who = getRefLogIdent() != null ? getRefLogIdent() : new PersonIdent(parent);
+            List<GitSqlReflog.Entry> entries = new ArrayList<>();
+            for (ReceiveCommand cmd : ready) {
+                if (cmd.getResult() != ReceiveCommand.Result.NOT_ATTEMPTED) {
+                    continue;
+                }
+                String message = getRefLogMessage();
+                if (isRefLogIncludingResult()) {
+                    String result = resultString(cmd.getType());
+                    if (result != null) {
+                        message = message.isEmpty() ? result : message + ": " + result;
+                    }
+                }
+                entries.add(new GitSqlReflog.Entry(targets.get(cmd), cmd.getOldId(), cmd.getNewId(), who, message));
+            }
+            return entries;
+        }
+
+        // In an atomic batch one rejected command aborts all the others.
+        private boolean prepared(List<ReceiveCommand> pending) {
+            if (!isAtomic()) {
+                return true;
+            }
+            for (ReceiveCommand cmd : pending) {
+                if (cmd.getResult() != ReceiveCommand.Result.NOT_ATTEMPTED) {
+                    ReceiveCommand.abort(pending);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void lock(Connection connection, List<ReceiveCommand> commands, Map<ReceiveCommand, String> targets,
+                          Map<String, Row> rows) throws SQLException {
+            List<String> names = new ArrayList<>();
+            for (ReceiveCommand cmd : commands) {
+                names.add(targets.get(cmd));
+            }
+            // Sorted, so concurrent batches take the row locks in the same order.
+            Collections.sort(names);
+
+            int chunkSize = parent.getOptions().getBulkChunkSize();
+            for (int i = 0; i < names.size(); i += chunkSize) {
+                List<String> chunk = names.subList(i, Math.min(names.size(), i + chunkSize));
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT `name`, `symbolic`, `target`, `peeled` FROM `git.refs` WHERE `repository` = ? AND `name` IN "
+                                + GitSqlObjectDatabase.placeholders(chunk.size()) + " FOR UPDATE"
+                )) {
+                    statement.setInt(1, parent.getRepositoryId());
+                    for (int j = 0; j < chunk.size(); j++) {
+                        statement.setString(j + 2, chunk.get(j));
+                    }
+                    try (ResultSet results = statement.executeQuery()) {
+                        while (results.next()) {
+                            rows.put(results.getString("name"), new Row(results));
+                        }
+                    }
+                }
+            }
         }
     }
 }
@@ -0,0 +1,228 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.CheckoutEntry;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ReflogEntry;
+import org.eclipse.jgit.lib.ReflogReader;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+// Ref movements, appended by the ref updates in their own transaction.
+// Entries are never removed, so deleted refs keep their history. Readers
+// page backwards from the newest entry through the (name, id) index.
+public class GitSqlReflog {
+    private static final String CHECKOUT_MOVING_FROM = "checkout: moving from ";
+
+    private final GitSqlRepository parent;
+
+    public GitSqlReflog(GitSqlRepository parent) {
+        this.parent = parent;
+    }
+
+    static void createTable(Connection connection) throws SQLException {
+        try (Statement creates = connection.createStatement()) {
+            creates.execute(
+                    "CREATE TABLE IF NOT EXISTS `git.reflog` (\n" +
+                            "  `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT 'Entry Sequence' PRIMARY KEY,\n" +
+                            "  `repository` INT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Repository',\n" +
+                            "  `name` VARCHAR(512) CHARACTER SET ascii COLLATE ascii_bin NOT NULL COMMENT 'Reference Name',\n" +
+                            "  `old_id` BINARY(20) NOT NULL COMMENT 'Previous Hash',\n" +
+                            "  `new_id` BINARY(20) NOT NULL COMMENT 'New Hash',\n" +
+                            "  `who_name` VARCHAR(255) NOT NULL COMMENT 'Committer Name',\n" +
+                            "  `who_email` VARCHAR(255) NOT NULL COMMENT 'Committer Email',\n" +
+                            "  `time` BIGINT NOT NULL COMMENT 'Milliseconds Since Epoch',\n" +
+                            "  `tz` SMALLINT NOT NULL COMMENT 'Timezone Offset in Minutes',\n" +
+                            "  `message` TEXT NOT NULL COMMENT 'Log Message',\n" +
+                            "  KEY `name` (`repository`, `name`, `id`)\n" +
+                            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Reference Log'"
+            );
+        }
+    }
+
+    public static class Entry implements ReflogEntry {
+        private final String name;
+        private final ObjectId oldId;
+        private final ObjectId newId;
+        private final PersonIdent who;
+        private final String comment;
+
+        Entry(String name, ObjectId oldId, ObjectId newId, PersonIdent who, String comment) {
+            this.name = name;
+            this.oldId = oldId != null ? oldId : ObjectId.zeroId();
+            this.newId = newId != null ? newId : ObjectId.zeroId();
+            this.who = who;
+            this.comment = comment;
+        }
+
+        static Entry read(ResultSet results) throws SQLException {
+            PersonIdent who = new PersonIdent(
+                    results.getString("who_name"),
+                    results.getString("who_email"),
+                    results.getLong("time"),
+                    results.getInt("tz")
+            );
+            return new Entry(
+                    results.getString("name"),
+                    ObjectId.fromRaw(results.getBytes("old_id")),
+                    ObjectId.fromRaw(results.getBytes("new_id")),
+                    who,
+                    results.getString("message")
+            );
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public ObjectId getOldId() {
+            return oldId;
+        }
+
+        @Override
+        public ObjectId getNewId() {
+            return newId;
+        }
+
+        @Override
+        public PersonIdent getWho() {
+            return who;
+        }
+
+        @Override
+        public String getComment() {
+            return comment;
+        }
+
+        @Override
+        public CheckoutEntry parseCheckout() {
+            if (!comment.startsWith(CHECKOUT_MOVING_FROM)) {
+                return null;
+            }
+            int to = comment.indexOf(" to ", CHECKOUT_MOVING_FROM.length());
+            if (to < 0) {
+                return null;
+            }
+
+            String from = comment.substring(CHECKOUT_MOVING_FROM.length(), to);
+            String target = comment.substring(to + " to ".length());
+            return new CheckoutEntry() {
+                @Override
+                public String getFromBranch() {
+                    return from;
+                }
+
+                @Override
+                public String getToBranch() {
+                    return target;
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "Entry[" + name + " " + oldId.name() + " -> " + newId.name() + ", " + comment + "]";
+        }
+    }
+
+    // One multi-row insert per bulkChunkSize entries, on the caller's
+    // connection and so inside its transaction.
+    static void append(Connection connection, int repository, List<Entry> entries, int chunkSize)
+            throws SQLException {
+        for (int i = 0; i < entries.size(); i += chunkSize) {
+            List<Entry> chunk = entries.subList(i, Math.min(entries.size(), i + chunkSize));
+            StringBuilder sql = new StringBuilder(
+                    "INSERT INTO `git.reflog` (`repository`, `name`, `old_id`, `new_id`, `who_name`, `who_email`, `time`, `tz`," +
+                            " `message`) VALUES ");
+            for (int j = 0; j < chunk.size(); j++) {
+                sql.append(j == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                int p = 1;
+                for (Entry e : chunk) {
+                    statement.setInt(p++, repository);
+                    statement.setString(p++, e.name);
+                    statement.setBytes(p++, GitSqlObjectDatabase.raw(e.oldId));
+                    statement.setBytes(p++, GitSqlObjectDatabase.raw(e.newId));
+                    statement.setString(p++, e.who.getName());
+                    statement.setString(p++, e.who.getEmailAddress());
+                    statement.setLong(p++, e.who.getWhen().getTime());
+                    statement.setInt(p++, e.who.getTimeZoneOffset());
+                    statement.setString(p++, e.comment);
+                }
+                statement.executeUpdate();
+            }
+        }
+    }
+
+    public ReflogReader newReader(String name) {
+        return new SqlReflogReader(name);
+    }
+
+    private class SqlReflogReader implements ReflogReader {
+        private final String name;
+
+        SqlReflogReader(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public ReflogEntry getLastEntry() throws IOException {
+            return getReverseEntry(0);
+        }
+
+        @Override
+        public List<ReflogEntry> getReverseEntries() throws IOException {
+            return read(Integer.MAX_VALUE, 0);
+        }
+
+        @Override
+        public ReflogEntry getReverseEntry(int number) throws IOException {
+            if (number < 0) {
+                throw new IllegalArgumentException();
+            }
+            List<ReflogEntry> entries = read(1, number);
+            return entries.isEmpty() ? null : entries.get(0);
+        }
+
+        @Override
+        public List<ReflogEntry> getReverseEntries(int max) throws IOException {
+            return read(max, 0);
+        }
+
+        private List<ReflogEntry> read(int max, int skip) throws IOException {
+            List<ReflogEntry> entries = new ArrayList<>();
+            if (max <= 0) {
+                return entries;
+            }
+
+            try (Connection connection = parent.getDataSource().getConnection();
+                 PreparedStatement statement = connection.prepareStatement(
+                         "SELECT `name`, `old_id`, `new_id`, `who_name`, `who_email`, `time`, `tz`, `message`" +
+                                 " FROM `git.reflog` WHERE `repository` = ? AND `name` = ? ORDER BY `id` DESC LIMIT ? OFFSET ?"
+                 )) {
+                statement.setInt(1, parent.getRepositoryId());
+                statement.setString(2, name);
+                statement.setInt(3, max);
+                statement.setInt(4, skip);
+                try (ResultSet results = statement.executeQuery()) {
+                    while (results.next()) {
+                        entries.add(Entry.read(results));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            return entries;
+        }
+    }
+}
@@ -4,20 +4,92 @@ import org.eclipse.jgit.attributes.AttributesNodeProvider;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.*;
 
+import javax.sql.DataSource;
 import java.io.IOException;
 import java.sql.Connection;
+import java.util.Collections;
+import java.util.Properties;
 
 public class GitSqlRepository extends Repository {
-    private final Connection connection;
+    private final DataSource dataSource;
+    private final SqlConnectionPool ownedPool;
+    private final GitSqlHost host;
+    private final int repositoryId;
+    private final int network;
+    private final SqlShardMap shards;
+    private final GitSqlOptions options;
+    private final SqlObjectCache objectCache;
     private final GitSqlObjectDatabase objectDatabase;
     private final GitSqlRefDatabase refDatabase;
+    private final GitSqlCommitGraph commitGraph;
+    private final GitSqlPathIndex pathIndex;
+    private final GitSqlReflog reflog;
 
-    public GitSqlRepository(Connection connection, BaseRepositoryBuilder builder) {
+    public GitSqlRepository(Connection connection, BaseRepositoryBuilder<?, ?> builder) {
+        this(connection, new GitSqlOptions(), builder);
+    }
+
+    // The connection stays owned by the caller; it is handed to one reader or
+    // inserter at a time.
+    public GitSqlRepository(Connection connection, GitSqlOptions options, BaseRepositoryBuilder<?, ?> builder) {
+        this(new SqlConnectionPool(connection)
+                        .setCheckoutTimeout(options.getConnectionTimeout())
+                        .setStatementCacheSize(options.getStatementCacheSize()),
+                true, options, builder);
+    }
+
+    public GitSqlRepository(String url, Properties properties, GitSqlOptions options, BaseRepositoryBuilder<?, ?> builder) {
+        this(new SqlConnectionPool(url, properties, options.getMaxConnections())
+                        .setCheckoutTimeout(options.getConnectionTimeout())
+                        .setStatementCacheSize(options.getStatementCacheSize()),
+                true, options, builder);
+    }
+
+    public GitSqlRepository(DataSource dataSource, GitSqlOptions options, BaseRepositoryBuilder<?, ?> builder) {
+        this(dataSource, false, options, builder);
+    }
+
+    private GitSqlRepository(DataSource dataSource, boolean owned, GitSqlOptions options, BaseRepositoryBuilder<?, ?> builder) {
+        this(dataSource, owned ? (SqlConnectionPool) dataSource : null, null, 0, 0, options,
+                new SqlObjectCache(options.getObjectCacheLimit()), builder);
+    }
+
+    // A repository of a host: its rows are told apart from the other
+    // repositories' by id, its objects by network, and the pool and object
+    // cache belong to the host.
+    GitSqlRepository(GitSqlHost host, int repositoryId, int network, BaseRepositoryBuilder<?, ?> builder) {
+        this(host.getDataSource(), null, host, repositoryId, network, host.getOptions(), host.getObjectCache(), builder);
+    }
+
+    private GitSqlRepository(DataSource dataSource, SqlConnectionPool ownedPool, GitSqlHost host,
+                             int repositoryId, int network, GitSqlOptions options, SqlObjectCache objectCache,
+                             BaseRepositoryBuilder<?, ?> builder) {
         super(builder);
 
-        this.connection = connection;
+        this.dataSource = dataSource;
+        this.ownedPool = ownedPool;
+        this.host = host;
+        this.repositoryId = repositoryId;
+        this.network = network;
+        this.options = options;
+        this.shards = options.getShardMap() != null
+                ? options.getShardMap() : new SqlShardMap(Collections.singletonList(dataSource));
+        this.objectCache = objectCache;
         this.objectDatabase = new GitSqlObjectDatabase(this);
         this.refDatabase = new GitSqlRefDatabase(this);
+        this.commitGraph = new GitSqlCommitGraph(this);
+        this.pathIndex = new GitSqlPathIndex(this);
+        this.reflog = new GitSqlReflog(this);
+
+        // The write-behind flusher borrows a connection of its own while the
+        // inserter still holds one, which a pool of one can never lend.
+        if (options.isWriteBehind()) {
+            for (DataSource shard : shards.getShards()) {
+                if (shard instanceof SqlConnectionPool && ((SqlConnectionPool) shard).getMaxConnections() < 2) {
+                    throw new IllegalArgumentException("Write-behind needs at least two connections per data source.");
+                }
+            }
+        }
     }
 
     @Override
@@ -64,6 +136,7 @@ public class GitSqlRepository extends Repository {
 
     @Override
     public void scanForRepoChanges() throws IOException {
+        refDatabase.current();
     }
 
     @Override
@@ -72,10 +145,58 @@ public class GitSqlRepository extends Repository {
 
     @Override
     public ReflogReader getReflogReader(String refName) throws IOException {
-        return null;
+        Ref ref = refDatabase.getRef(refName);
+        return ref != null ? reflog.newReader(ref.getName()) : null;
+    }
+
+    @Override
+    protected void doClose() {
+        super.doClose();
+        if (ownedPool != null) {
+            ownedPool.close();
+        }
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public boolean isHosted() {
+        return host != null;
+    }
+
+    GitSqlHost getHost() {
+        return host;
+    }
+
+    // 0 for a repository that has the tables to itself.
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    // The object space the repository reads and writes. Forks share their
+    // network's when the host dedups objects, and otherwise have their own.
+    public int getNetwork() {
+        return network;
+    }
+
+    public SqlShardMap getShards() {
+        return shards;
+    }
+
+    public GitSqlOptions getOptions() {
+        return options;
+    }
+
+    public GitSqlCommitGraph getCommitGraph() {
+        return commitGraph;
+    }
+
+    public GitSqlPathIndex getPathIndex() {
+        return pathIndex;
     }
 
-    public Connection getConnection() {
-        return connection;
+    public SqlObjectCache getObjectCache() {
+        return objectCache;
     }
 }
@@ -0,0 +1,82 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ImportCheckpoint {
+    private final File file;
+    private final Set<ObjectId> commits = new LinkedHashSet<>();
+
+    public ImportCheckpoint(File file) {
+        this.file = file;
+    }
+
+    public ImportCheckpoint load() throws IOException {
+        commits.clear();
+        if (!file.exists()) {
+            return this;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (ObjectId.isId(line)) {
+                    commits.add(ObjectId.fromString(line));
+                }
+            }
+        }
+        return this;
+    }
+
+    public Collection<ObjectId> getCommits() {
+        return new ArrayList<>(commits);
+    }
+
+    public void retain(Collection<? extends ObjectId> ids) {
+        commits.retainAll(ids);
+    }
+
+    // Only the tips of the completed region are kept; everything they reach
+    // has already been written.
+    public void advance(List<RevCommit> segment) throws IOException {
+        for (RevCommit commit : segment) {
+            commits.add(commit.copy());
+        }
+        for (RevCommit commit : segment) {
+            for (RevCommit p : commit.getParents()) {
+                commits.remove(p);
+            }
+        }
+        save();
+    }
+
+    public void delete() throws IOException {
+        commits.clear();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.US_ASCII)) {
+            for (ObjectId id : commits) {
+                out.write(id.name());
+                out.write('\n');
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -2,105 +2,157 @@ package run.fork.git.flex.sqldb;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.lib.*;
-import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
-import org.eclipse.jgit.treewalk.TreeWalk;
 
 import java.io.File;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Properties;
 
 public class ImportMain {
     public static void main(String[] args) throws Exception {
-        if (args.length != 3) {
-            System.err.println("Usage: git-sql-import <url> <username> <password>");
-            System.exit(1);
+        GitSqlOptions options = new GitSqlOptions();
+        boolean incremental = false;
+        int flags = 0;
+        for (; flags < args.length && args[flags].startsWith("--"); flags++) {
+            if (args[flags].equals("--incremental")) {
+                incremental = true;
+            } else if (args[flags].equals("--delta")) {
+                options.setDeltaStorage(true);
+            } else if (args[flags].equals("--path-index")) {
+                options.setPathIndex(true);
+            } else {
+                flags = args.length;
+            }
         }
+        args = Arrays.copyOfRange(args, Math.min(flags, args.length), args.length);
 
-        System.out.println("Using connection " + args[0]);
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Usage: git-sql-import [--incremental] [--delta] [--path-index] <url> <username> <password> [threads]");
+            System.exit(1);
+        }
 
-        Connection connection = DriverManager.getConnection(
-                args[0],
-                args[1],
-                args[2]
-        );
+        int threads = args.length == 4
+                ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Using connection " + args[0] + " with " + threads + " threads");
+
+        Properties props = new Properties();
+        props.setProperty("user", args[1]);
+        props.setProperty("password", args[2]);
+        props.setProperty("rewriteBatchedStatements", "true");
+
+        // One connection per writer, plus room for ref updates and lookups.
+        options.setMaxConnections(threads + 2);
+        GitSqlRepository repo = new GitSqlRepository(args[0], props, options, new BaseRepositoryBuilder<>());
+        if (!incremental || !repo.getObjectDatabase().exists()) {
+            repo.create(true);
+        } else {
+            ((GitSqlObjectDatabase) repo.getObjectDatabase()).upgrade();
+            ((GitSqlRefDatabase) repo.getRefDatabase()).upgrade();
+        }
 
-        GitSqlRepository repo = new GitSqlRepository(connection, new BaseRepositoryBuilder());
-        repo.create(true);
-        ObjectInserter inserter = repo.newObjectInserter();
+        List<GitSqlRepository> writers = Collections.nCopies(threads, repo);
 
         {
             Git git = Git.open(new File("."));
             Repository tmp = git.getRepository();
-            ObjectReader reader = tmp.getObjectDatabase().newReader();
-            Set<String> objects = new HashSet<>();
-            for (RevCommit commit : git.log().all().call()) {
-                RevTree tree = commit.getTree();
-                TreeWalk walk = new TreeWalk(tmp);
-                walk.addTree(tree);
-                walk.setRecursive(true);
-
-                while (walk.next()) {
-                    objects.add(walk.getObjectId(0).name());
-                }
+            ImportCheckpoint checkpoint = new ImportCheckpoint(new File(tmp.getDirectory(), "sql-import.checkpoint"));
 
-                objects.add(tree.name());
-                objects.add(commit.name());
+            Map<String, Ref> refs = tmp.getAllRefs();
+            List<ObjectId> tips = new ArrayList<>();
+            for (Ref ref : refs.values()) {
+                if (ref.getObjectId() != null) {
+                    tips.add(ref.getObjectId());
+                }
             }
 
-            System.out.println("" + objects.size() + " objects to import...");
-            int counter = 0;
-            for (String id : objects) {
-                counter++;
-                System.out.println("Importing Object " + id);
-
-                ObjectLoader loader = reader.open(ObjectId.fromString(id));
-                byte[] bytes = loader.getBytes();
-                int type = loader.getType();
+            ImportPipeline pipeline = new ImportPipeline(tmp, writers)
+                    .setReaderThreads(threads);
 
-                ObjectId result = inserter.insert(type, bytes);
+            Map<String, Ref> existing = Collections.emptyMap();
+            if (incremental) {
+                existing = repo.getRefDatabase().getRefs(RefDatabase.ALL);
 
-                if (!id.equals(result.name())) {
-                    System.out.println("Differing Object (" + id + " => " + result.name() + ")");
+                List<ObjectId> have = new ArrayList<>();
+                for (Ref ref : existing.values()) {
+                    if (ref.getObjectId() != null && tmp.hasObject(ref.getObjectId())) {
+                        have.add(ref.getObjectId());
+                    }
                 }
 
-                if ((counter % 100) == 0) {
-                    System.out.println("Commit (" + counter + " of " + objects.size() + " objects)");
-                    inserter.flush();
+                // Only trust checkpointed commits that actually made it into this store.
+                checkpoint.load();
+                GitSqlObjectDatabase odb = (GitSqlObjectDatabase) repo.getObjectDatabase();
+                checkpoint.retain(odb.findExisting(checkpoint.getCommits()));
+                if (!checkpoint.getCommits().isEmpty()) {
+                    System.out.println("Resuming from " + checkpoint.getCommits().size() + " checkpointed commits");
                 }
-            }
-            System.out.println("Commit (" + counter + " of " + objects.size() + " objects)");
-            inserter.flush();
 
-            objects.clear();
+                pipeline.setSkipExisting(repo).runIncremental(tips, have, checkpoint);
+            } else {
+                checkpoint.delete();
+                pipeline.run(tips, Collections.<ObjectId>emptyList());
+            }
 
-            Map<String, Ref> refs = tmp.getAllRefs();
+            int updated = 0;
             for (Ref ref : refs.values()) {
                 if (ref.getName().equals("HEAD")) {
                     continue;
                 }
 
-                System.out.println("Importing Reference " + ref.getName());
+                Ref current = existing.get(ref.getName());
+                if (current != null && !current.isSymbolic() && !ref.isSymbolic()
+                        && AnyObjectId.equals(current.getObjectId(), ref.getObjectId())) {
+                    continue;
+                }
+
                 RefUpdate upd = repo.updateRef(ref.getName());
                 if (ref.isSymbolic()) {
-                    if (upd.link(ref.getTarget().getName()) != RefUpdate.Result.NEW) {
+                    RefUpdate.Result result = upd.link(ref.getTarget().getName());
+                    if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED) {
                         System.out.println("Failed to import reference " + ref.getName());
                     }
                 } else {
                     upd.setNewObjectId(ref.getObjectId());
+                    upd.setForceUpdate(true);
                     RefUpdate.Result result = upd.update();
 
-                    if (result != RefUpdate.Result.NEW) {
-                        System.out.println("Failed to import reference " + ref.getName());
+                    switch (result) {
+                        case NEW:
+                        case FORCED:
+                        case FAST_FORWARD:
+                        case NO_CHANGE:
+                            break;
+                        default:
+                            System.out.println("Failed to import reference " + ref.getName() + ": " + result);
                     }
                 }
+                updated++;
             }
 
-            inserter.close();
+            int deleted = 0;
+            for (Ref ref : existing.values()) {
+                if (ref.getName().equals("HEAD") || refs.containsKey(ref.getName())) {
+                    continue;
+                }
+
+                RefUpdate upd = repo.updateRef(ref.getName());
+                upd.setForceUpdate(true);
+                if (upd.delete() != RefUpdate.Result.FORCED) {
+                    System.out.println("Failed to delete reference " + ref.getName());
+                }
+                deleted++;
+            }
+
+            System.out.println("Updated " + updated + " references, deleted " + deleted);
+            checkpoint.delete();
             tmp.close();
         }
+
+        repo.close();
     }
 }
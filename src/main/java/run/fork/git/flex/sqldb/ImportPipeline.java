@@ -0,0 +1,398 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ImportPipeline {
+    private static final Row END = new Row(null, 0, null, null);
+
+    private final Repository source;
+    private final List<GitSqlRepository> targets;
+
+    private int readerThreads;
+    private int queueSize = 4096;
+    private int batchSize = 1000;
+    private long reportInterval = 5;
+    private int segmentSize = 10000;
+    private GitSqlObjectDatabase existing;
+    private PrintStream out = System.out;
+    private long start;
+
+    private final AtomicLong readCount = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public ImportPipeline(Repository source, List<GitSqlRepository> targets) {
+        this.source = source;
+        this.targets = targets;
+        this.readerThreads = targets.size();
+    }
+
+    public ImportPipeline setReaderThreads(int threads) {
+        readerThreads = Math.max(1, threads);
+        return this;
+    }
+
+    public ImportPipeline setQueueSize(int size) {
+        queueSize = Math.max(1, size);
+        return this;
+    }
+
+    public ImportPipeline setBatchSize(int rows) {
+        batchSize = Math.max(1, rows);
+        return this;
+    }
+
+    public ImportPipeline setReportInterval(long seconds) {
+        reportInterval = seconds;
+        return this;
+    }
+
+    public ImportPipeline setSegmentSize(int commits) {
+        segmentSize = Math.max(1, commits);
+        return this;
+    }
+
+    public ImportPipeline setSkipExisting(GitSqlRepository target) {
+        existing = target == null ? null : (GitSqlObjectDatabase) target.getObjectDatabase();
+        return this;
+    }
+
+    public ImportPipeline setOutput(PrintStream out) {
+        this.out = out;
+        return this;
+    }
+
+    public long getObjectCount() {
+        return written.get();
+    }
+
+    public long getByteCount() {
+        return writtenBytes.get();
+    }
+
+    public void runIncremental(Collection<? extends ObjectId> want, Collection<? extends ObjectId> have,
+                               ImportCheckpoint checkpoint) throws IOException {
+        List<RevCommit> commits = new ArrayList<>();
+        try (RevWalk walk = new RevWalk(source)) {
+            walk.sort(RevSort.TOPO, true);
+            walk.sort(RevSort.REVERSE, true);
+            for (ObjectId id : want) {
+                RevObject o = walk.peel(walk.parseAny(id));
+                if (o instanceof RevCommit) {
+                    walk.markStart((RevCommit) o);
+                }
+            }
+            for (ObjectId id : completed(have, checkpoint)) {
+                RevObject o = walk.peel(walk.parseAny(id));
+                if (o instanceof RevCommit) {
+                    walk.markUninteresting((RevCommit) o);
+                }
+            }
+            for (RevCommit c : walk) {
+                commits.add(c);
+            }
+        }
+
+        out.println(commits.size() + " new commits to import");
+
+        // Parents always precede children, so once a segment is written
+        // every object reachable from it is in the store.
+        for (int i = 0; i < commits.size(); i += segmentSize) {
+            List<RevCommit> segment = commits.subList(i, Math.min(commits.size(), i + segmentSize));
+            run(segment, completed(have, checkpoint));
+            checkpoint.advance(segment);
+        }
+
+        // Annotated tags and other non-commit tips.
+        run(want, completed(have, checkpoint));
+    }
+
+    private static List<ObjectId> completed(Collection<? extends ObjectId> have, ImportCheckpoint checkpoint) {
+        List<ObjectId> ids = new ArrayList<>(have);
+        ids.addAll(checkpoint.getCommits());
+        return ids;
+    }
+
+    public void run(Collection<? extends ObjectId> want, Collection<? extends ObjectId> have) throws IOException {
+        if (start == 0) {
+            start = System.nanoTime();
+        }
+
+        BlockingQueue<Row> ids = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<Row> rows = new ArrayBlockingQueue<>(queueSize);
+
+        ExecutorService workers = Executors.newFixedThreadPool(readerThreads + targets.size());
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        try {
+            if (reportInterval > 0) {
+                reporter.scheduleAtFixedRate(this::report, reportInterval, reportInterval, TimeUnit.SECONDS);
+            }
+
+            List<Future<?>> readers = new ArrayList<>();
+            for (int i = 0; i < readerThreads; i++) {
+                readers.add(workers.submit(() -> read(ids, rows)));
+            }
+
+            List<Future<?>> writers = new ArrayList<>();
+            for (GitSqlRepository target : targets) {
+                writers.add(workers.submit(() -> write(target, rows)));
+            }
+
+            enumerate(want, have, ids);
+            for (int i = 0; i < readerThreads; i++) {
+                put(ids, END);
+            }
+            await(readers);
+
+            for (int i = 0; i < targets.size(); i++) {
+                put(rows, END);
+            }
+            await(writers);
+
+            // Writers race each other, so commits whose parents landed in
+            // another writer's batch are left without a generation.
+            targets.get(0).getCommitGraph().updateGenerations();
+            if (targets.get(0).getOptions().isPathIndex()) {
+                targets.get(0).getPathIndex().update();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            reporter.shutdownNow();
+            workers.shutdownNow();
+        }
+
+        report();
+    }
+
+    private void enumerate(Collection<? extends ObjectId> want, Collection<? extends ObjectId> have,
+                           BlockingQueue<Row> ids) throws IOException, InterruptedException {
+        try (ObjectWalk walk = new ObjectWalk(source)) {
+            for (ObjectId id : want) {
+                walk.markStart(walk.parseAny(id));
+            }
+            for (ObjectId id : have) {
+                walk.markUninteresting(walk.parseAny(id));
+            }
+
+            // With delta storage on, the previous version seen at the same
+            // path is offered to the writer as a delta base.
+            Map<String, ObjectId> lastAtPath = null;
+            if (targets.get(0).getOptions().isDeltaStorage()) {
+                lastAtPath = new HashMap<>();
+            }
+
+            List<Row> pending = new ArrayList<>();
+            RevObject o;
+            while ((o = walk.next()) != null) {
+                enqueue(pending, new Row(o, o.getType(), null, null), ids);
+            }
+            while ((o = walk.nextObject()) != null) {
+                ObjectId base = null;
+                if (lastAtPath != null) {
+                    base = lastAtPath.put(walk.getPathString(), o);
+                }
+                enqueue(pending, new Row(o, o.getType(), null, base), ids);
+            }
+            drain(pending, ids);
+        }
+    }
+
+    private void enqueue(List<Row> pending, Row row, BlockingQueue<Row> ids) throws IOException, InterruptedException {
+        if (existing == null) {
+            put(ids, row);
+            return;
+        }
+
+        pending.add(row);
+        if (pending.size() >= existing.getOptions().getBulkChunkSize()) {
+            drain(pending, ids);
+        }
+    }
+
+    private void drain(List<Row> pending, BlockingQueue<Row> ids) throws IOException, InterruptedException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<ObjectId> probe = new ArrayList<>(pending.size());
+        for (Row row : pending) {
+            probe.add(row.id);
+        }
+
+        Set<ObjectId> found = existing.findExisting(probe);
+        for (Row row : pending) {
+            if (!found.contains(row.id)) {
+                put(ids, row);
+            } else {
+                skipped.incrementAndGet();
+            }
+        }
+        pending.clear();
+    }
+
+    private Void read(BlockingQueue<Row> ids, BlockingQueue<Row> rows) throws Exception {
+        try (ObjectReader reader = source.newObjectReader()) {
+            for (;;) {
+                Row row = take(ids);
+                if (row == END) {
+                    return null;
+                }
+
+                ObjectLoader loader = reader.open(row.id, row.type);
+                byte[] data = loader.isLarge() ? null : loader.getCachedBytes();
+                put(rows, new Row(row.id, loader.getType(), data, row.base));
+                readCount.incrementAndGet();
+            }
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            throw e;
+        }
+    }
+
+    private Void write(GitSqlRepository target, BlockingQueue<Row> rows) throws Exception {
+        try (ObjectInserter inserter = target.newObjectInserter();
+             ObjectReader reader = source.newObjectReader()) {
+            int pendingRows = 0;
+            long pendingBytes = 0;
+
+            for (;;) {
+                Row row = take(rows);
+                if (row == END) {
+                    break;
+                }
+
+                ObjectId id;
+                long size;
+                if (row.data != null && row.base != null && inserter instanceof GitSqlObjectDatabase.SqlObjectInserter) {
+                    id = ((GitSqlObjectDatabase.SqlObjectInserter) inserter).insert(row.type, row.data, row.base);
+                    size = row.data.length;
+                } else if (row.data != null) {
+                    id = inserter.insert(row.type, row.data);
+                    size = row.data.length;
+                } else {
+                    // Large objects are streamed by the writer so they never
+                    // sit in the queue.
+                    ObjectLoader loader = reader.open(row.id, row.type);
+                    size = loader.getSize();
+                    try (ObjectStream in = loader.openStream()) {
+                        id = inserter.insert(row.type, size, in);
+                    }
+                }
+
+                if (!AnyObjectId.equals(id, row.id)) {
+                    throw new IOException("Object " + row.id.name() + " imported as " + id.name());
+                }
+
+                pendingRows++;
+                pendingBytes += size;
+                if (pendingRows >= batchSize || pendingBytes >= target.getOptions().getInsertBatchLimit()) {
+                    inserter.flush();
+                    written.addAndGet(pendingRows);
+                    writtenBytes.addAndGet(pendingBytes);
+                    pendingRows = 0;
+                    pendingBytes = 0;
+                }
+            }
+
+            inserter.flush();
+            written.addAndGet(pendingRows);
+            writtenBytes.addAndGet(pendingBytes);
+            return null;
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            throw e;
+        }
+    }
+
+    private void put(BlockingQueue<Row> queue, Row row) throws IOException, InterruptedException {
+        while (!queue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+        }
+    }
+
+    private Row take(BlockingQueue<Row> queue) throws IOException, InterruptedException {
+        Row row;
+        while ((row = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            checkFailure();
+        }
+        return row;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new IOException("Import aborted", t);
+        }
+    }
+
+    private void await(List<Future<?>> futures) throws IOException, InterruptedException {
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Throwable cause = failure.get() != null ? failure.get() : e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    private void report() {
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        long objects = written.get();
+        long bytes = writtenBytes.get();
+        out.println(String.format(Locale.ROOT,
+                "Imported %d objects (%d read, %d already present), %.1f objects/s, %.2f MiB/s",
+                objects, readCount.get(), skipped.get(), objects / seconds, bytes / seconds / GitSqlOptions.MiB));
+    }
+
+    private static class Row {
+        final ObjectId id;
+        final int type;
+        final byte[] data;
+        final ObjectId base;
+
+        Row(ObjectId id, int type, byte[] data, ObjectId base) {
+            this.id = id;
+            this.type = type;
+            this.data = data;
+            this.base = base;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package run.fork.git.flex.sqldb;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+public class SqlConnectionPool implements DataSource, AutoCloseable {
+    private final String url;
+    private final Properties properties;
+    private final int maxConnections;
+    private final Pooled fixed;
+
+    private final Deque<Pooled> idle = new ArrayDeque<>();
+    private int open;
+    private boolean closed;
+
+    private long checkoutTimeout = TimeUnit.SECONDS.toMillis(30);
+    private int statementCacheSize = 64;
+    private int loginTimeout;
+    private PrintWriter logWriter;
+
+    public SqlConnectionPool(String url, Properties properties, int maxConnections) {
+        this.url = url;
+        this.properties = withServerPrepares(url, properties);
+        this.maxConnections = Math.max(1, maxConnections);
+        this.fixed = null;
+    }
+
+    // Serves a single caller-owned connection to one borrower at a time.
+    public SqlConnectionPool(Connection connection) {
+        this.url = null;
+        this.properties = null;
+        this.maxConnections = 1;
+        this.fixed = new Pooled(connection);
+        this.idle.add(fixed);
+        this.open = 1;
+    }
+
+    // MySQL Connector/J and MariaDB Connector/J prepare client side unless
+    // told otherwise; cached statements only pay off with server prepares.
+    private static Properties withServerPrepares(String url, Properties properties) {
+        if (!url.startsWith("jdbc:mysql:") && !url.startsWith("jdbc:mariadb:")) {
+            return properties;
+        }
+        if (properties.containsKey("useServerPrepStmts") || url.contains("useServerPrepStmts=")) {
+            return properties;
+        }
+
+        Properties copy = new Properties();
+        copy.putAll(properties);
+        copy.setProperty("useServerPrepStmts", "true");
+        return copy;
+    }
+
+    public SqlConnectionPool setCheckoutTimeout(long millis) {
+        checkoutTimeout = Math.max(0, millis);
+        return this;
+    }
+
+    public SqlConnectionPool setStatementCacheSize(int statements) {
+        statementCacheSize = Math.max(0, statements);
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized int getOpenConnections() {
+        return open;
+    }
+
+    public synchronized int getIdleConnections() {
+        return idle.size();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrap(borrow());
+    }
+
+    private Pooled borrow() throws SQLException {
+        long deadline = System.currentTimeMillis() + checkoutTimeout;
+        synchronized (this) {
+            for (;;) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+
+                Pooled c = idle.pollFirst();
+                if (c != null) {
+                    if (c != fixed && c.connection.isClosed()) {
+                        open--;
+                        continue;
+                    }
+                    return c;
+                }
+
+                if (open < maxConnections) {
+                    open++;
+                    break;
+                }
+
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new SQLException("Timed out waiting for one of " + maxConnections + " connections");
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException(e);
+                }
+            }
+        }
+
+        try {
+            return new Pooled(DriverManager.getConnection(url, properties));
+        } catch (SQLException e) {
+            synchronized (this) {
+                open--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void release(Pooled c) {
+        boolean discard;
+        try {
+            c.reset();
+            if (!c.connection.getAutoCommit()) {
+                c.connection.rollback();
+                c.connection.setAutoCommit(true);
+            }
+            discard = c.connection.isClosed();
+        } catch (SQLException e) {
+            discard = true;
+        }
+
+        synchronized (this) {
+            if (closed || discard) {
+                open--;
+                c.close(c != fixed);
+            } else {
+                idle.addFirst(c);
+            }
+            notifyAll();
+        }
+    }
+
+    private Connection wrap(Pooled pooled) {
+        return (Connection) Proxy.newProxyInstance(
+                SqlConnectionPool.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new Handle(pooled)
+        );
+    }
+
+    @Override
+    public void close() {
+        Pooled[] toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = idle.toArray(new Pooled[0]);
+            open -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+
+        for (Pooled c : toClose) {
+            c.close(c != fixed);
+        }
+    }
+
+    // A physical connection and the statements prepared on it. Only the
+    // borrower touches the cache, so it needs no locking of its own.
+    private class Pooled {
+        final Connection connection;
+        final LinkedHashMap<String, Cached> statements = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                if (size() <= statementCacheSize || eldest.getValue().inUse) {
+                    return false;
+                }
+                eldest.getValue().discard();
+                return true;
+            }
+        };
+
+        Pooled(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            if (statementCacheSize == 0) {
+                return connection.prepareStatement(sql);
+            }
+
+            Cached cached = statements.get(sql);
+            if (cached != null && cached.inUse) {
+                // The same SQL is already open on this connection, e.g. a
+                // query issued while iterating another.
+                return connection.prepareStatement(sql);
+            }
+            if (cached == null) {
+                cached = new Cached(connection.prepareStatement(sql));
+                statements.put(sql, cached);
+            }
+            cached.inUse = true;
+            return cached.proxy;
+        }
+
+        // Anything the borrower left open is closed before the connection
+        // is handed to anyone else.
+        void reset() throws SQLException {
+            for (Cached cached : statements.values()) {
+                if (cached.inUse) {
+                    cached.recycle();
+                }
+            }
+        }
+
+        void close(boolean physical) {
+            Iterator<Cached> itr = statements.values().iterator();
+            while (itr.hasNext()) {
+                itr.next().discard();
+                itr.remove();
+            }
+            if (physical) {
+                try {
+                    connection.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    private static class Cached implements InvocationHandler {
+        final PreparedStatement statement;
+        final PreparedStatement proxy;
+        ResultSet results;
+        boolean inUse;
+
+        Cached(PreparedStatement statement) {
+            this.statement = statement;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+                    SqlConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    this
+            );
+        }
+
+        void recycle() throws SQLException {
+            inUse = false;
+            if (results != null) {
+                results.close();
+                results = null;
+            }
+            statement.clearParameters();
+            statement.clearBatch();
+        }
+
+        void discard() {
+            inUse = false;
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (inUse) {
+                        recycle();
+                    }
+                    return null;
+                case "isClosed":
+                    return !inUse;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+
+            if (!inUse) {
+                throw new SQLException("Statement has been closed");
+            }
+            try {
+                Object result = method.invoke(statement, args);
+                if (result instanceof ResultSet) {
+                    results = (ResultSet) result;
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private class Handle implements InvocationHandler {
+        private Pooled pooled;
+
+        Handle(Pooled pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (pooled != null) {
+                        Pooled c = pooled;
+                        pooled = null;
+                        release(c);
+                    }
+                    return null;
+                case "isClosed":
+                    return pooled == null || pooled.connection.isClosed();
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled(" + (pooled != null ? pooled.connection : null) + ")";
+            }
+
+            if (pooled == null) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            if (method.getName().equals("prepareStatement") && args.length == 1) {
+                return pooled.prepare((String) args[0]);
+            }
+            try {
+                return method.invoke(pooled.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
@@ -0,0 +1,150 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decoded objects, keyed by id. A cache shared by several repositories
+// remembers every network an entry was read from, so one repository is
+// never served an object it could not read from its own rows, and an
+// object that several networks hold is kept once for all of them.
+public class SqlObjectCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long segmentLimit;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SqlObjectCache(long maxBytes) {
+        this.segmentLimit = maxBytes / SEGMENTS;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public ObjectLoader get(int network, AnyObjectId id) {
+        Entry entry = segmentFor(id).get(network, id);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return new ObjectLoader.SmallObject(entry.type, entry.data);
+    }
+
+    public void put(int network, AnyObjectId id, int type, byte[] data) {
+        // A single object may not push out more than a quarter of its segment.
+        if (data.length > segmentLimit / 4) {
+            return;
+        }
+        segmentFor(id).put(network, id, type, data);
+    }
+
+    public boolean contains(int network, AnyObjectId id) {
+        return segmentFor(id).get(network, id) != null;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getCurrentSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.weight();
+        }
+        return size;
+    }
+
+    public long getMaxSize() {
+        return segmentLimit * SEGMENTS;
+    }
+
+    private Segment segmentFor(AnyObjectId id) {
+        return segments[id.getFirstByte() & (SEGMENTS - 1)];
+    }
+
+    // The networks are only read and changed under the segment's lock.
+    private static class Entry {
+        final Set<Integer> networks = new HashSet<>();
+        final int type;
+        final byte[] data;
+
+        Entry(int type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private class Segment {
+        private final LinkedHashMap<ObjectId, Entry> map = new LinkedHashMap<>(64, 0.75f, true);
+        private long weight;
+
+        synchronized Entry get(int network, AnyObjectId id) {
+            Entry entry = map.get(id);
+            return entry != null && entry.networks.contains(network) ? entry : null;
+        }
+
+        // The same id is the same object in every network, so a second
+        // network only joins the entry already there.
+        synchronized void put(int network, AnyObjectId id, int type, byte[] data) {
+            Entry entry = map.get(id);
+            if (entry != null) {
+                entry.networks.add(network);
+                return;
+            }
+            entry = new Entry(type, data);
+            entry.networks.add(network);
+            map.put(id.copy(), entry);
+            weight += data.length;
+
+            Iterator<Map.Entry<ObjectId, Entry>> itr = map.entrySet().iterator();
+            while (weight > segmentLimit && itr.hasNext()) {
+                weight -= itr.next().getValue().data.length;
+                itr.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+            weight = 0;
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package run.fork.git.flex.sqldb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public abstract class SqlObjectCodec {
+    public static final int RAW = 0;
+    public static final int ZLIB = 1;
+
+    private static final Map<Integer, SqlObjectCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(new Raw());
+        register(new Zlib(Deflater.DEFAULT_COMPRESSION));
+    }
+
+    public static void register(SqlObjectCodec codec) {
+        codecs.put(codec.getId(), codec);
+    }
+
+    public static SqlObjectCodec get(int id) throws IOException {
+        SqlObjectCodec codec = codecs.get(id);
+        if (codec == null) {
+            throw new IOException("Unknown object codec " + id);
+        }
+        return codec;
+    }
+
+    public abstract int getId();
+
+    public abstract byte[] encode(byte[] data);
+
+    public abstract byte[] decode(byte[] data, int size) throws IOException;
+
+    public abstract InputStream decode(InputStream in);
+
+    public byte[] decode(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+        try (InputStream in = decode(new ByteArrayInputStream(data))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Signatures of formats that gain nothing from another pass of zlib.
+    public static boolean looksCompressed(byte[] data) {
+        if (data.length < 4) {
+            return false;
+        }
+
+        int b0 = data[0] & 0xff, b1 = data[1] & 0xff, b2 = data[2] & 0xff, b3 = data[3] & 0xff;
+        return (b0 == 0x1f && b1 == 0x8b)                               // gzip
+                || (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4)       // zip, jar, docx
+                || (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G')  // png
+                || (b0 == 0xff && b1 == 0xd8 && b2 == 0xff)             // jpeg
+                || (b0 == 'G' && b1 == 'I' && b2 == 'F')                // gif
+                || (b0 == 0xfd && b1 == '7' && b2 == 'z' && b3 == 'X')  // xz
+                || (b0 == 'B' && b1 == 'Z' && b2 == 'h')                // bzip2
+                || (b0 == '7' && b1 == 'z' && b2 == 0xbc && b3 == 0xaf) // 7z
+                || (b0 == 0x28 && b1 == 0xb5 && b2 == 0x2f && b3 == 0xfd); // zstd
+    }
+
+    public static class Raw extends SqlObjectCodec {
+        @Override
+        public int getId() {
+            return RAW;
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+            return data;
+        }
+
+        @Override
+        public byte[] decode(byte[] data, int size) {
+            return data;
+        }
+
+        @Override
+        public byte[] decode(byte[] data) {
+            return data;
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    }
+
+    public static class Zlib extends SqlObjectCodec {
+        private final int level;
+
+        private final ThreadLocal<Deflater> deflaters;
+        private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+        public Zlib(int level) {
+            this.level = level;
+            this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public int getId() {
+            return ZLIB;
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public byte[] decode(byte[] data, int size) throws IOException {
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(data);
+
+            byte[] out = new byte[size];
+            try {
+                int n = 0;
+                while (n < size) {
+                    int r = inflater.inflate(out, n, size - n);
+                    if (r == 0) {
+                        // With room left in the output, no progress means the
+                        // stream ended early, was truncated, or wants a
+                        // dictionary we don't have. None of these recover.
+                        if (inflater.needsDictionary()) {
+                            throw new DataFormatException("Object stream requires a preset dictionary");
+                        }
+                        break;
+                    }
+                    n += r;
+                }
+                if (n != size) {
+                    throw new IOException("Object inflated to " + n + " bytes, expected " + size);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            return out;
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A Bloom filter over object ids. A miss means the object is certainly not
+// stored, a hit still has to be confirmed by a query. Ids are already
+// uniformly distributed, so the probe positions are taken straight from
+// their bytes by double hashing instead of hashing them again.
+public class SqlObjectFilter {
+    private final AtomicLongArray words;
+    private final long mask;
+    private final int probes;
+    private final long capacity;
+    private final AtomicLong count = new AtomicLong();
+    private volatile boolean ready;
+
+    public SqlObjectFilter(long capacity, int bitsPerObject) {
+        long bits = Long.highestOneBit(Math.max(64, capacity * bitsPerObject - 1) << 1);
+        this.words = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, bits >>> 6));
+        this.mask = ((long) words.length() << 6) - 1;
+        this.probes = Math.max(1, Math.min(16, (int) Math.round(bitsPerObject * Math.log(2))));
+        this.capacity = capacity;
+    }
+
+    public void add(AnyObjectId id) {
+        long h1 = word(id, 0);
+        long h2 = word(id, 8) | 1;
+        for (int i = 0; i < probes; i++) {
+            long bit = (h1 + i * h2) & mask;
+            int index = (int) (bit >>> 6);
+            long flag = 1L << bit;
+            long old;
+            do {
+                old = words.get(index);
+            } while ((old & flag) == 0 && !words.compareAndSet(index, old, old | flag));
+        }
+        count.incrementAndGet();
+    }
+
+    public boolean mightContain(AnyObjectId id) {
+        long h1 = word(id, 0);
+        long h2 = word(id, 8) | 1;
+        for (int i = 0; i < probes; i++) {
+            long bit = (h1 + i * h2) & mask;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Until the initial scan is done, only the ids added so far are in it
+    // and a miss proves nothing.
+    public boolean isReady() {
+        return ready;
+    }
+
+    void setReady() {
+        ready = true;
+    }
+
+    // Past its capacity the false positive rate climbs quickly, so the
+    // owner rebuilds it at a larger size.
+    public boolean isSaturated() {
+        return count.get() > capacity;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    private static long word(AnyObjectId id, int offset) {
+        long w = 0;
+        for (int i = 0; i < 8; i++) {
+            w = (w << 8) | id.getByte(offset + i);
+        }
+        return w;
+    }
+}
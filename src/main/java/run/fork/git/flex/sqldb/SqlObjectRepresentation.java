@@ -0,0 +1,49 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.internal.storage.pack.StoredObjectRepresentation;
+import org.eclipse.jgit.lib.ObjectId;
+
+class SqlObjectRepresentation extends StoredObjectRepresentation {
+    final int codec;
+    final long size;
+    final long storedLength;
+    final ObjectId deltaBase;
+    final boolean deltaAttempted;
+
+    SqlObjectRepresentation(int codec, long size, long storedLength, ObjectId deltaBase, boolean deltaAttempted) {
+        this.codec = codec;
+        this.size = size;
+        this.storedLength = storedLength;
+        this.deltaBase = deltaBase;
+        this.deltaAttempted = deltaAttempted;
+    }
+
+    @Override
+    public int getWeight() {
+        return (int) Math.min(storedLength, Integer.MAX_VALUE - 1);
+    }
+
+    // Raw deltas are deflated on the way out, which is still far cheaper
+    // than searching for a new delta. Raw whole objects are left to
+    // PackWriter.
+    @Override
+    public int getFormat() {
+        if (deltaBase != null) {
+            return PACK_DELTA;
+        }
+        if (codec == SqlObjectCodec.ZLIB) {
+            return PACK_WHOLE;
+        }
+        return FORMAT_OTHER;
+    }
+
+    @Override
+    public ObjectId getDeltaBase() {
+        return deltaBase;
+    }
+
+    @Override
+    public boolean wasDeltaAttempted() {
+        return deltaAttempted;
+    }
+}
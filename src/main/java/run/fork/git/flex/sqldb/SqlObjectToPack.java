@@ -0,0 +1,25 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.internal.storage.pack.ObjectToPack;
+import org.eclipse.jgit.internal.storage.pack.StoredObjectRepresentation;
+import org.eclipse.jgit.lib.AnyObjectId;
+
+class SqlObjectToPack extends ObjectToPack {
+    private static final long serialVersionUID = 1L;
+
+    int codec;
+    long size;
+    long storedLength;
+
+    SqlObjectToPack(AnyObjectId src, int type) {
+        super(src, type);
+    }
+
+    @Override
+    public void select(StoredObjectRepresentation ref) {
+        SqlObjectRepresentation rep = (SqlObjectRepresentation) ref;
+        codec = rep.codec;
+        size = rep.size;
+        storedLength = rep.storedLength;
+    }
+}
@@ -0,0 +1,257 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.internal.storage.file.PackLock;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class SqlPackParser extends PackParser {
+    private final GitSqlObjectDatabase db;
+    private final GitSqlObjectDatabase.SqlObjectInserter inserter;
+    private final CRC32 crc;
+
+    private File tmpPack;
+    private RandomAccessFile out;
+
+    private int currentType;
+    private long currentSize;
+    private final List<PackedObjectInfo> wholeBlobs;
+    private final List<Long> wholeBlobSizes;
+
+    SqlPackParser(GitSqlObjectDatabase db, GitSqlObjectDatabase.SqlObjectInserter inserter, InputStream in) {
+        // Collision checks read through the inserter so the parse never needs
+        // a second connection while the inserter holds one.
+        super(new InserterDatabase(inserter), in);
+        this.db = db;
+        this.inserter = inserter;
+        this.crc = new CRC32();
+        this.wholeBlobs = new ArrayList<>();
+        this.wholeBlobSizes = new ArrayList<>();
+    }
+
+    @Override
+    public PackLock parse(ProgressMonitor receiving, ProgressMonitor resolving) throws IOException {
+        // The pack is spooled to disk so delta bases can be re-read during
+        // resolution without holding the whole stream in memory.
+        tmpPack = File.createTempFile("incoming_", ".pack");
+        try {
+            out = new RandomAccessFile(tmpPack, "rw");
+
+            super.parse(receiving, resolving);
+
+            inserter.flush();
+            return null;
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ignored) {
+            }
+
+            if (!tmpPack.delete() && tmpPack.exists()) {
+                tmpPack.deleteOnExit();
+            }
+        }
+    }
+
+    private void insertWholeBlobs() throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            for (int i = 0; i < wholeBlobs.size(); i++) {
+                PackedObjectInfo info = wholeBlobs.get(i);
+                long size = wholeBlobSizes.get(i);
+
+                out.seek(info.getOffset());
+                skipObjectHeader();
+
+                inflater.reset();
+                InputStream in = new InflaterInputStream(
+                        new BufferedInputStream(Channels.newInputStream(out.getChannel())),
+                        inflater
+                );
+
+                ObjectId id = inserter.insert(Constants.OBJ_BLOB, size, in);
+                if (!AnyObjectId.equals(id, info)) {
+                    throw new IOException("Blob " + info.name() + " re-read from pack as " + id.name());
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void skipObjectHeader() throws IOException {
+        int c = out.read();
+        while ((c & 0x80) != 0) {
+            c = out.read();
+        }
+    }
+
+    @Override
+    protected void onPackHeader(long objectCount) throws IOException {
+    }
+
+    @Override
+    protected void onBeginWholeObject(long streamPosition, int type, long inflatedSize) throws IOException {
+        crc.reset();
+        currentType = type;
+        currentSize = inflatedSize;
+    }
+
+    @Override
+    protected void onEndWholeObject(PackedObjectInfo info) throws IOException {
+        info.setCRC((int) crc.getValue());
+
+        // PackParser never inflates whole blobs onto the heap, so they are
+        // copied out of the spooled pack once parsing completes.
+        if (currentType == Constants.OBJ_BLOB) {
+            wholeBlobs.add(info);
+            wholeBlobSizes.add(currentSize);
+        }
+    }
+
+    @Override
+    protected void onBeginOfsDelta(long streamPosition, long baseStreamPosition, long inflatedSize) throws IOException {
+        crc.reset();
+    }
+
+    @Override
+    protected void onBeginRefDelta(long streamPosition, AnyObjectId baseId, long inflatedSize) throws IOException {
+        crc.reset();
+    }
+
+    @Override
+    protected UnresolvedDelta onEndDelta() throws IOException {
+        UnresolvedDelta delta = new UnresolvedDelta();
+        delta.setCRC((int) crc.getValue());
+        return delta;
+    }
+
+    @Override
+    protected PackedObjectInfo newInfo(AnyObjectId id, UnresolvedDelta delta, ObjectId deltaBase) {
+        PackedObjectInfo info = new DeltaObjectInfo(id, deltaBase);
+        if (delta != null) {
+            info.setCRC(delta.getCRC());
+        }
+        return info;
+    }
+
+    @Override
+    protected void onInflatedObjectData(PackedObjectInfo obj, int typeCode, byte[] data) throws IOException {
+        try {
+            inserter.addRow(obj, typeCode, data, ((DeltaObjectInfo) obj).deltaBase);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    protected void onObjectHeader(Source src, byte[] raw, int pos, int len) throws IOException {
+        crc.update(raw, pos, len);
+    }
+
+    @Override
+    protected void onObjectData(Source src, byte[] raw, int pos, int len) throws IOException {
+        crc.update(raw, pos, len);
+    }
+
+    @Override
+    protected void onStoreStream(byte[] raw, int pos, int len) throws IOException {
+        out.write(raw, pos, len);
+    }
+
+    @Override
+    protected void onPackFooter(byte[] hash) throws IOException {
+        // Whole blobs are stored before deltas are resolved so they can
+        // serve as delta bases in the object table.
+        insertWholeBlobs();
+        inserter.flush();
+    }
+
+    @Override
+    protected boolean onAppendBase(int typeCode, byte[] data, PackedObjectInfo info) throws IOException {
+        // Thin pack bases already live in the object table.
+        return false;
+    }
+
+    @Override
+    protected void onEndThinPack() throws IOException {
+    }
+
+    @Override
+    protected ObjectTypeAndSize seekDatabase(PackedObjectInfo obj, ObjectTypeAndSize info) throws IOException {
+        out.seek(obj.getOffset());
+        crc.reset();
+        return readObjectHeader(info);
+    }
+
+    @Override
+    protected ObjectTypeAndSize seekDatabase(UnresolvedDelta delta, ObjectTypeAndSize info) throws IOException {
+        out.seek(delta.getOffset());
+        crc.reset();
+        return readObjectHeader(info);
+    }
+
+    @Override
+    protected int readDatabase(byte[] dst, int pos, int cnt) throws IOException {
+        return out.read(dst, pos, cnt);
+    }
+
+    @Override
+    protected boolean checkCRC(int oldCRC) {
+        return oldCRC == (int) crc.getValue();
+    }
+
+    private static class DeltaObjectInfo extends PackedObjectInfo {
+        private static final long serialVersionUID = 1L;
+
+        final ObjectId deltaBase;
+
+        DeltaObjectInfo(AnyObjectId id, ObjectId deltaBase) {
+            super(id);
+            this.deltaBase = deltaBase;
+        }
+    }
+
+    private static class InserterDatabase extends ObjectDatabase {
+        private final ObjectInserter inserter;
+
+        InserterDatabase(ObjectInserter inserter) {
+            this.inserter = inserter;
+        }
+
+        @Override
+        public ObjectInserter newInserter() {
+            return inserter;
+        }
+
+        @Override
+        public ObjectReader newReader() {
+            return inserter.newReader();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package run.fork.git.flex.sqldb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public final class SqlSchema {
+    public static final String OBJECTS = "objects";
+    public static final String REFS = "refs";
+
+    private SqlSchema() {
+    }
+
+    public static boolean tableExists(Connection connection, String table) throws SQLException {
+        // DatabaseMetaData.getTables() splits the dotted table names into
+        // catalog and table, so ask information_schema directly.
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT 1 FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name = ?"
+        )) {
+            statement.setString(1, table);
+            try (ResultSet tables = statement.executeQuery()) {
+                return tables.next();
+            }
+        }
+    }
+
+    public static boolean columnExists(Connection connection, String table, String column) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT 1 FROM information_schema.columns" +
+                        " WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ?"
+        )) {
+            statement.setString(1, table);
+            statement.setString(2, column);
+            try (ResultSet columns = statement.executeQuery()) {
+                return columns.next();
+            }
+        }
+    }
+
+    public static int getVersion(Connection connection, String component) throws SQLException {
+        if (!tableExists(connection, "git.schema")) {
+            return 1;
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT `version` FROM `git.schema` WHERE `component` = ?"
+        )) {
+            statement.setString(1, component);
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getInt("version") : 1;
+            }
+        }
+    }
+
+    public static void setVersion(Connection connection, String component, int version) throws SQLException {
+        try (Statement creates = connection.createStatement()) {
+            creates.execute(
+                    "CREATE TABLE IF NOT EXISTS `git.schema` (\n" +
+                            "  `component` VARCHAR(64) CHARACTER SET ascii COLLATE ascii_bin NOT NULL COMMENT 'Schema Component' PRIMARY KEY,\n" +
+                            "  `version` INT NOT NULL COMMENT 'Schema Version'\n" +
+                            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Schema Versions'"
+            );
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO `git.schema` (`component`, `version`) VALUES (?, ?)" +
+                        " ON DUPLICATE KEY UPDATE `version` = ?"
+        )) {
+            statement.setString(1, component);
+            statement.setInt(2, version);
+            statement.setInt(3, version);
+            statement.executeUpdate();
+        }
+    }
+}
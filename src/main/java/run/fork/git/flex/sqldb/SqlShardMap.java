@@ -0,0 +1,75 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Routes object ids to the data sources holding `git.objects`, by the first
+// byte of the id. Every other table stays on the repository's own data
+// source, which may or may not be one of the shards. The bytes are split
+// evenly to start with; route() moves ranges of them, e.g. while a shard is
+// being drained or when shards differ in size.
+public class SqlShardMap {
+    private final List<DataSource> shards;
+    private final int[] routes = new int[256];
+
+    public SqlShardMap(List<DataSource> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        if (new HashSet<>(shards).size() != shards.size()) {
+            throw new IllegalArgumentException("Shards must be distinct data sources.");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        for (int b = 0; b < routes.length; b++) {
+            routes[b] = b * shards.size() / routes.length;
+        }
+    }
+
+    public SqlShardMap route(int fromByte, int toByte, int shard) {
+        if (fromByte < 0 || toByte > 255 || fromByte > toByte) {
+            throw new IllegalArgumentException("Bad prefix range " + fromByte + "-" + toByte);
+        }
+        if (shard < 0 || shard >= shards.size()) {
+            throw new IllegalArgumentException("No shard " + shard);
+        }
+        for (int b = fromByte; b <= toByte; b++) {
+            routes[b] = shard;
+        }
+        return this;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    public DataSource get(int shard) {
+        return shards.get(shard);
+    }
+
+    public List<DataSource> getShards() {
+        return shards;
+    }
+
+    public int shardOf(AnyObjectId id) {
+        return routes[id.getFirstByte()];
+    }
+
+    public int shardOf(int firstByte) {
+        return routes[firstByte];
+    }
+
+    public <T extends AnyObjectId> Map<Integer, List<T>> partition(Iterable<T> ids) {
+        Map<Integer, List<T>> parts = new LinkedHashMap<>();
+        for (T id : ids) {
+            parts.computeIfAbsent(shardOf(id), s -> new ArrayList<>()).add(id);
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,199 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CommitGraphTest {
+    private static final String BRANCH = Constants.R_HEADS + "main";
+
+    private ScratchDatabase database;
+    private GitSqlRepository repository;
+    private List<ObjectId> chain;
+    private ObjectId side;
+
+    // A chain of five commits and a sibling of the last one.
+    @Before
+    public void setUp() throws Exception {
+        database = new ScratchDatabase();
+        repository = database.create(new GitSqlOptions().setObjectCacheLimit(0));
+
+        chain = new ArrayList<>();
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            ObjectId tree = inserter.insert(new TreeFormatter());
+            ObjectId head = null;
+            for (int i = 0; i < 5; i++) {
+                head = ScratchDatabase.commit(inserter, tree, head, i);
+                chain.add(head);
+            }
+            side = ScratchDatabase.commit(inserter, tree, chain.get(3), 99);
+            inserter.flush();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Test
+    public void isAncestor() throws Exception {
+        GitSqlCommitGraph graph = repository.getCommitGraph();
+        assertTrue(graph.isAncestor(chain.get(0), chain.get(4)));
+        assertTrue(graph.isAncestor(chain.get(3), side));
+        assertFalse(graph.isAncestor(chain.get(4), chain.get(0)));
+        assertFalse(graph.isAncestor(chain.get(4), side));
+    }
+
+    // Rebuilt a few rows at a time, with one commit dated before its parent
+    // so it takes a second pass to resolve.
+    @Test
+    public void rebuildPagesThroughTheNetwork() throws Exception {
+        GitSqlRepository paged = database.open(new GitSqlOptions()
+                .setBulkChunkSize(3)
+                .setObjectCacheLimit(0));
+        List<ObjectId> history = new ArrayList<>();
+        try (ObjectInserter inserter = paged.newObjectInserter()) {
+            ObjectId tree = inserter.insert(new TreeFormatter());
+            ObjectId head = null;
+            for (int n : new int[]{10, 11, 12, 13, 14, 15, 1, 17, 18, 19}) {
+                head = ScratchDatabase.commit(inserter, tree, head, n);
+                history.add(head);
+            }
+            inserter.flush();
+        }
+        try (Connection connection = paged.getDataSource().getConnection();
+             Statement clear = connection.createStatement()) {
+            clear.execute("DELETE FROM `git.commits`");
+        }
+
+        paged.getCommitGraph().rebuild();
+        Map<ObjectId, GitSqlCommitGraph.Commit> rows = paged.getCommitGraph().lookup(chain);
+        assertEquals(5, rows.size());
+        rows = paged.getCommitGraph().lookup(history);
+        for (int i = 0; i < history.size(); i++) {
+            assertEquals(i + 1, rows.get(history.get(i)).getGeneration());
+        }
+    }
+
+    // The walk gets its topology from the table, so it runs through commits
+    // whose objects are gone, while bodies still come from the objects.
+    @Test
+    public void walksParseHeadersFromTheGraph() throws Exception {
+        dropObjects(chain.subList(1, 4));
+
+        try (ObjectReader reader = repository.newObjectReader();
+             RevWalk walk = repository.getCommitGraph().newRevWalk(reader)) {
+            walk.markStart(walk.parseCommit(side));
+            List<ObjectId> order = new ArrayList<>();
+            List<Integer> times = new ArrayList<>();
+            RevCommit c;
+            while ((c = walk.next()) != null) {
+                order.add(c.copy());
+                times.add(c.getCommitTime());
+            }
+            List<ObjectId> expected = new ArrayList<>(chain.subList(0, 4));
+            expected.add(side);
+            Collections.reverse(expected);
+            assertEquals(expected, order);
+            assertEquals(Arrays.asList(99, 3, 2, 1, 0), times);
+
+            RevCommit root = walk.lookupCommit(chain.get(0));
+            walk.parseBody(root);
+            assertEquals("Commit 0\n", root.getFullMessage());
+            try {
+                walk.parseBody(walk.lookupCommit(chain.get(2)));
+                fail();
+            } catch (MissingObjectException e) {
+                // Only the headers are in the table.
+            }
+
+            // A commit the walk has not parsed reads as itself to anything
+            // else sharing the reader.
+            assertEquals(chain.get(4), new ObjectInserter.Formatter().idFor(Constants.OBJ_COMMIT,
+                    walk.getObjectReader().open(chain.get(4), Constants.OBJ_COMMIT).getCachedBytes()));
+        }
+    }
+
+    // With the commits in between gone from the object table, only the
+    // graph can show the update is a fast-forward.
+    @Test
+    public void refUpdatesCheckFastForwardsInTheGraph() throws Exception {
+        setBranch(chain.get(0));
+        dropObjects(chain.subList(1, 4));
+
+        RefUpdate forward = repository.updateRef(BRANCH);
+        forward.setNewObjectId(chain.get(4));
+        assertEquals(RefUpdate.Result.FAST_FORWARD, forward.update());
+
+        RefUpdate sideways = repository.updateRef(BRANCH);
+        sideways.setNewObjectId(side);
+        assertEquals(RefUpdate.Result.REJECTED, sideways.update());
+    }
+
+    @Test
+    public void batchUpdatesCheckFastForwardsInTheGraph() throws Exception {
+        setBranch(chain.get(0));
+        dropObjects(chain.subList(1, 4));
+
+        BatchRefUpdate batch = repository.getRefDatabase().newBatchUpdate();
+        ReceiveCommand forward = new ReceiveCommand(chain.get(0), chain.get(4), BRANCH);
+        batch.addCommand(forward);
+        try (RevWalk walk = new RevWalk(repository)) {
+            batch.execute(walk, NullProgressMonitor.INSTANCE);
+        }
+        assertEquals(ReceiveCommand.Type.UPDATE, forward.getType());
+        assertEquals(ReceiveCommand.Result.OK, forward.getResult());
+
+        batch = repository.getRefDatabase().newBatchUpdate();
+        ReceiveCommand sideways = new ReceiveCommand(chain.get(4), side, BRANCH);
+        batch.addCommand(sideways);
+        try (RevWalk walk = new RevWalk(repository)) {
+            batch.execute(walk, NullProgressMonitor.INSTANCE);
+        }
+        assertEquals(ReceiveCommand.Result.REJECTED_NONFASTFORWARD, sideways.getResult());
+    }
+
+    private void setBranch(ObjectId id) throws Exception {
+        RefUpdate update = repository.updateRef(BRANCH);
+        update.setNewObjectId(id);
+        assertEquals(RefUpdate.Result.NEW, update.update());
+    }
+
+    private void dropObjects(List<ObjectId> ids) throws Exception {
+        try (Connection connection = repository.getDataSource().getConnection();
+             PreparedStatement delete = connection.prepareStatement(
+                     "DELETE FROM `git.objects` WHERE `hash` = ?")) {
+            for (ObjectId id : ids) {
+                delete.setBytes(1, GitSqlObjectDatabase.raw(id));
+                delete.executeUpdate();
+            }
+        }
+    }
+}
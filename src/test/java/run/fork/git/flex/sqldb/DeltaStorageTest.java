@@ -0,0 +1,121 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.transport.PackParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaStorageTest {
+    private ScratchDatabase database;
+    private GitSqlRepository repository;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new ScratchDatabase();
+        repository = database.create(new GitSqlOptions()
+                .setDeltaStorage(true)
+                .setCompressionLevel(Deflater.BEST_SPEED)
+                .setObjectCacheLimit(0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    // The base compresses to almost nothing, so compressing the whole
+    // object instead of the delta would still look like a saving.
+    @Test
+    public void zlibDeltaRoundTrip() throws Exception {
+        byte[] base = new byte[100000];
+        byte[] changed = new byte[base.length + 1000];
+        Arrays.fill(changed, 50000, 51000, (byte) 'y');
+
+        ObjectId baseId;
+        ObjectId changedId;
+        ObjectId commitId;
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            GitSqlObjectDatabase.SqlObjectInserter sql = (GitSqlObjectDatabase.SqlObjectInserter) inserter;
+            baseId = sql.insert(Constants.OBJ_BLOB, base);
+            changedId = sql.insert(Constants.OBJ_BLOB, changed, baseId);
+
+            TreeFormatter tree = new TreeFormatter();
+            tree.append("a", FileMode.REGULAR_FILE, baseId);
+            tree.append("b", FileMode.REGULAR_FILE, changedId);
+            CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(inserter.insert(tree));
+            PersonIdent ident = new PersonIdent("Test", "test@example.com", 0, 0);
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage("delta\n");
+            commitId = inserter.insert(commit);
+            inserter.flush();
+        }
+
+        try (Connection connection = repository.getDataSource().getConnection();
+             PreparedStatement query = connection.prepareStatement(
+                     "SELECT `codec`, `base` FROM `git.objects` WHERE `hash` = ?")) {
+            query.setBytes(1, raw(changedId));
+            try (ResultSet results = query.executeQuery()) {
+                assertTrue(results.next());
+                assertEquals(SqlObjectCodec.ZLIB, results.getInt("codec"));
+                assertNotNull(results.getBytes("base"));
+            }
+        }
+
+        try (ObjectReader reader = repository.newObjectReader()) {
+            assertArrayEquals(base, reader.open(baseId).getCachedBytes());
+            assertArrayEquals(changed, reader.open(changedId).getCachedBytes());
+        }
+
+        ByteArrayOutputStream pack = new ByteArrayOutputStream();
+        try (PackWriter writer = new PackWriter(repository)) {
+            writer.preparePack(NullProgressMonitor.INSTANCE,
+                    Collections.singleton(commitId), Collections.<ObjectId>emptySet());
+            writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, pack);
+        }
+
+        try (InMemoryRepository copy = new InMemoryRepository(new DfsRepositoryDescription("copy"));
+             ObjectInserter inserter = copy.newObjectInserter()) {
+            PackParser parser = inserter.newPackParser(new ByteArrayInputStream(pack.toByteArray()));
+            parser.parse(NullProgressMonitor.INSTANCE);
+            inserter.flush();
+            try (ObjectReader reader = copy.newObjectReader()) {
+                assertArrayEquals(base, reader.open(baseId).getCachedBytes());
+                assertArrayEquals(changed, reader.open(changedId).getCachedBytes());
+            }
+        }
+    }
+
+    private static byte[] raw(ObjectId id) {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        id.copyRawTo(raw, 0);
+        return raw;
+    }
+}
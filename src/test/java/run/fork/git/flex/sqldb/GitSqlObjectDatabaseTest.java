@@ -0,0 +1,474 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AsyncObjectLoaderQueue;
+import org.eclipse.jgit.lib.BaseRepositoryBuilder;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.util.IO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GitSqlObjectDatabaseTest {
+    private ScratchDatabase database;
+
+    @Before
+    public void setUp() {
+        database = new ScratchDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    private static List<ObjectId> insertBlobs(GitSqlRepository repository, String prefix, int count) throws Exception {
+        List<ObjectId> ids = new ArrayList<>();
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            for (int i = 0; i < count; i++) {
+                ids.add(inserter.insert(Constants.OBJ_BLOB, Constants.encode(prefix + i)));
+            }
+            inserter.flush();
+        }
+        return ids;
+    }
+
+    private static ObjectId missing(int n) {
+        return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, Constants.encode("missing " + n));
+    }
+
+    private static int rows(GitSqlRepository repository) throws Exception {
+        try (Connection connection = repository.getDataSource().getConnection();
+             PreparedStatement count = connection.prepareStatement("SELECT COUNT(*) FROM `git.objects`");
+             ResultSet results = count.executeQuery()) {
+            results.next();
+            return results.getInt(1);
+        }
+    }
+
+    private static SqlObjectFilter filter(GitSqlRepository repository) throws Exception {
+        GitSqlObjectDatabase objects = (GitSqlObjectDatabase) repository.getObjectDatabase();
+        try (GitSqlObjectDatabase.SqlObjectReader reader = (GitSqlObjectDatabase.SqlObjectReader) objects.newReader()) {
+            return objects.filter(reader);
+        }
+    }
+
+    @Test
+    public void filterAnswersForStoredAndMissingObjects() throws Exception {
+        GitSqlRepository repository = database.create(new GitSqlOptions()
+                .setObjectFilter(true)
+                .setObjectCacheLimit(0));
+        // Stored before the filter is first loaded, and after.
+        List<ObjectId> before = insertBlobs(repository, "before ", 500);
+        try (ObjectReader reader = repository.newObjectReader()) {
+            assertFalse(reader.has(missing(0)));
+        }
+        List<ObjectId> after = insertBlobs(repository, "after ", 500);
+
+        try (ObjectReader reader = repository.newObjectReader()) {
+            for (ObjectId id : before) {
+                assertTrue(reader.has(id));
+            }
+            for (ObjectId id : after) {
+                assertTrue(reader.has(id));
+            }
+            for (int i = 0; i < 500; i++) {
+                assertFalse(reader.has(missing(i)));
+            }
+        }
+
+        List<ObjectId> probe = new ArrayList<>(before);
+        probe.addAll(after);
+        for (int i = 0; i < 500; i++) {
+            probe.add(missing(i));
+        }
+        Set<ObjectId> found = ((GitSqlObjectDatabase) repository.getObjectDatabase()).findExisting(probe);
+        Set<ObjectId> expected = new HashSet<>(before);
+        expected.addAll(after);
+        assertEquals(expected, found);
+    }
+
+    // Another repository instance on the same tables writes after this one
+    // loaded its filter; the filter never hears of it, so readers must not
+    // take its word for a miss.
+    @Test
+    public void readersSeeObjectsFromOtherWriters() throws Exception {
+        GitSqlOptions options = new GitSqlOptions().setObjectFilter(true).setObjectCacheLimit(0);
+        GitSqlRepository repository = database.create(options);
+        GitSqlRepository other = database.open(options);
+        insertBlobs(repository, "mine ", 10);
+        try (ObjectReader reader = repository.newObjectReader()) {
+            assertFalse(reader.has(missing(0)));
+        }
+
+        List<ObjectId> theirs = insertBlobs(other, "theirs ", 10);
+        try (ObjectReader reader = repository.newObjectReader()) {
+            for (ObjectId id : theirs) {
+                assertTrue(reader.has(id));
+            }
+        }
+        GitSqlObjectDatabase objects = (GitSqlObjectDatabase) repository.getObjectDatabase();
+        assertEquals(new HashSet<>(theirs), objects.findExisting(theirs));
+
+        // Dedup may trust the stale filter; INSERT IGNORE keeps the one row.
+        insertBlobs(repository, "theirs ", 10);
+        assertEquals(20, rows(repository));
+    }
+
+    @Test
+    public void hostedRepositoriesShareTheirNetworksFilter() throws Exception {
+        GitSqlHost host = database.host(new GitSqlOptions()
+                .setObjectFilter(true)
+                .setForkSharing(true)
+                .setObjectCacheLimit(0));
+        GitSqlRepository writer = host.create("alice/app");
+        GitSqlRepository other = host.open("alice/app");
+        GitSqlRepository fork = host.fork("alice/app", "bob/app");
+        try {
+            // The others' filters are loaded before anything is written.
+            SqlObjectFilter shared = filter(writer);
+            assertSame(shared, filter(other));
+            assertSame(shared, filter(fork));
+
+            List<ObjectId> ids = insertBlobs(writer, "shared ", 200);
+            for (GitSqlRepository repository : new GitSqlRepository[]{other, fork}) {
+                SqlObjectFilter filter = filter(repository);
+                for (ObjectId id : ids) {
+                    assertTrue(filter.mightContain(id));
+                }
+            }
+        } finally {
+            writer.close();
+            other.close();
+            fork.close();
+        }
+    }
+
+    // A fork with a network of its own shares the host's cache: the object
+    // both networks hold is kept once and serves either, while a third
+    // network that never read it still goes to its own rows.
+    @Test
+    public void hostedNetworksShareCachedObjects() throws Exception {
+        GitSqlHost host = database.host(new GitSqlOptions().setForkSharing(false));
+        GitSqlRepository source = host.create("alice/app");
+        ObjectId id = insertBlobs(source, "cached ", 1).get(0);
+        GitSqlRepository fork = host.fork("alice/app", "bob/app");
+        GitSqlRepository stranger = host.create("carol/other");
+        try {
+            SqlObjectCache cache = host.getObjectCache();
+            byte[] data = Constants.encode("cached 0");
+            for (GitSqlRepository repository : new GitSqlRepository[]{source, fork}) {
+                try (ObjectReader reader = repository.newObjectReader()) {
+                    assertArrayEquals(data, reader.open(id).getCachedBytes());
+                }
+            }
+            assertEquals(data.length, cache.getCurrentSize());
+
+            long misses = cache.getMissCount();
+            for (int i = 0; i < 10; i++) {
+                GitSqlRepository repository = i % 2 == 0 ? source : fork;
+                try (ObjectReader reader = repository.newObjectReader()) {
+                    assertArrayEquals(data, reader.open(id).getCachedBytes());
+                }
+            }
+            assertEquals(misses, cache.getMissCount());
+            assertEquals(data.length, cache.getCurrentSize());
+
+            try (ObjectReader reader = stranger.newObjectReader()) {
+                assertFalse(reader.has(id));
+                reader.open(id);
+                fail("another network was served a cached object");
+            } catch (MissingObjectException expected) {
+                // Not in carol/other's rows, so not for carol/other.
+            }
+        } finally {
+            source.close();
+            fork.close();
+            stranger.close();
+        }
+    }
+
+    @Test
+    public void insertsOfStoredObjectsAreSkipped() throws Exception {
+        GitSqlRepository repository = database.create(new GitSqlOptions().setObjectFilter(true));
+        List<ObjectId> first = insertBlobs(repository, "blob ", 200);
+        List<ObjectId> again = insertBlobs(repository, "blob ", 300);
+
+        assertEquals(first, again.subList(0, 200));
+        assertEquals(300, rows(repository));
+
+        // Twice in one batch, too.
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            inserter.insert(Constants.OBJ_BLOB, Constants.encode("twice"));
+            inserter.insert(Constants.OBJ_BLOB, Constants.encode("twice"));
+            inserter.flush();
+        }
+        assertEquals(301, rows(repository));
+    }
+
+    @Test
+    public void largeBlobsStreamThroughASpillFile() throws Exception {
+        GitSqlRepository repository = database.create(new GitSqlOptions()
+                .setStreamFileThreshold(64 * 1024)
+                .setStreamBufferSize(8 * 1024)
+                .setObjectCacheLimit(0));
+
+        byte[] data = new byte[1024 * 1024 + 17];
+        new Random(7).nextBytes(data);
+        ObjectId expected = new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, data);
+
+        ObjectId id;
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            id = inserter.insert(Constants.OBJ_BLOB, data.length, new ByteArrayInputStream(data));
+            inserter.flush();
+        }
+        assertEquals(expected, id);
+
+        try (ObjectReader reader = repository.newObjectReader()) {
+            ObjectLoader loader = reader.open(id);
+            assertTrue(loader.isLarge());
+            assertEquals(data.length, loader.getSize());
+            try (ObjectStream in = loader.openStream()) {
+                byte[] read = new byte[data.length];
+                IO.readFully(in, read, 0, read.length);
+                assertEquals(-1, in.read());
+                assertArrayEquals(data, read);
+            }
+        }
+
+        // Storing it again leaves the one row.
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            inserter.insert(Constants.OBJ_BLOB, data.length, new ByteArrayInputStream(data));
+            inserter.flush();
+        }
+        assertEquals(1, rows(repository));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeBehindNeedsASecondConnection() throws Exception {
+        database.open(new GitSqlOptions().setWriteBehind(true).setMaxConnections(1));
+    }
+
+    // On a caller's one connection, the filter has to load on the
+    // connection the inserter already holds, both for its readers and for
+    // the existence check of a streamed blob.
+    @Test
+    public void filterLoadsOnTheInsertersConnection() throws Exception {
+        GitSqlOptions options = new GitSqlOptions()
+                .setObjectFilter(true)
+                .setConnectionTimeout(2000)
+                .setStreamFileThreshold(64 * 1024)
+                .setObjectCacheLimit(0);
+        try (Connection connection = DriverManager.getConnection(database.getUrl(), database.getProperties())) {
+            GitSqlRepository repository = new GitSqlRepository(connection, options, new BaseRepositoryBuilder<>());
+            try {
+                repository.create(true);
+                try (ObjectInserter inserter = repository.newObjectInserter()) {
+                    ObjectId stored = inserter.insert(Constants.OBJ_BLOB, Constants.encode("stored"));
+                    inserter.flush();
+                    try (ObjectReader reader = inserter.newReader()) {
+                        assertTrue(reader.has(stored));
+                        assertFalse(reader.has(missing(0)));
+                    }
+
+                    byte[] data = new byte[128 * 1024];
+                    new Random(3).nextBytes(data);
+                    inserter.insert(Constants.OBJ_BLOB, data.length, new ByteArrayInputStream(data));
+                    inserter.flush();
+                }
+                assertEquals(2, rows(repository));
+            } finally {
+                repository.close();
+            }
+        }
+    }
+
+    @Test
+    public void inserterReadersSeeBatchedRows() throws Exception {
+        readsBeforeFlush(new GitSqlOptions());
+    }
+
+    @Test
+    public void inserterReadersSeeRowsWrittenBehind() throws Exception {
+        readsBeforeFlush(new GitSqlOptions().setWriteBehind(true));
+    }
+
+    // A small batch limit leaves some rows handed to the flusher and the
+    // rest still batched; delta rows need their pending bases.
+    private void readsBeforeFlush(GitSqlOptions options) throws Exception {
+        GitSqlRepository repository = database.create(options
+                .setInsertBatchLimit(4096)
+                .setDeltaStorage(true)
+                .setObjectCacheLimit(0));
+
+        List<byte[]> contents = new ArrayList<>();
+        List<ObjectId> ids = new ArrayList<>();
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            GitSqlObjectDatabase.SqlObjectInserter sql = (GitSqlObjectDatabase.SqlObjectInserter) inserter;
+            for (int i = 0; i < 100; i++) {
+                byte[] data = Constants.encode(String.format("%0512d", i) + "\n" + String.format("%0512d", 0));
+                contents.add(data);
+                ids.add(i == 0
+                        ? sql.insert(Constants.OBJ_BLOB, data)
+                        : sql.insert(Constants.OBJ_BLOB, data, ids.get(ids.size() - 1)));
+            }
+
+            try (ObjectReader reader = inserter.newReader()) {
+                for (int i = 0; i < ids.size(); i++) {
+                    assertTrue(reader.has(ids.get(i)));
+                    assertEquals(contents.get(i).length, reader.getObjectSize(ids.get(i), Constants.OBJ_BLOB));
+                    assertArrayEquals(contents.get(i), reader.open(ids.get(i)).getCachedBytes());
+                }
+
+                int read = 0;
+                AsyncObjectLoaderQueue<ObjectId> queue = reader.open(ids, true);
+                while (queue.next()) {
+                    assertArrayEquals(contents.get(ids.indexOf(queue.getObjectId())), queue.open().getCachedBytes());
+                    read++;
+                }
+                assertEquals(ids.size(), read);
+
+                Set<ObjectId> found = ((GitSqlObjectDatabase.SqlObjectReader) reader).findExisting(ids);
+                assertEquals(new HashSet<>(ids), found);
+            }
+            inserter.flush();
+        }
+        assertEquals(ids.size(), rows(repository));
+    }
+
+    // The first release's table: hex keys, no network, codec or size, and
+    // content stored behind its loose object header (or, for rows from
+    // before that, without it).
+    @Test
+    public void upgradesTheBaselineSchema() throws Exception {
+        ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+        byte[] blob = Constants.encode("hello\n");
+        ObjectId blobId = formatter.idFor(Constants.OBJ_BLOB, blob);
+        TreeFormatter tree = new TreeFormatter();
+        tree.append("hello", FileMode.REGULAR_FILE, blobId);
+        ObjectId treeId = formatter.idFor(tree);
+        List<byte[]> contents = new ArrayList<>();
+        List<Integer> types = new ArrayList<>();
+        List<ObjectId> ids = new ArrayList<>();
+        contents.add(blob);
+        types.add(Constants.OBJ_BLOB);
+        ids.add(blobId);
+        contents.add(tree.toByteArray());
+        types.add(Constants.OBJ_TREE);
+        ids.add(treeId);
+        ObjectId parent = null;
+        for (int n = 0; n < 3; n++) {
+            CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(treeId);
+            if (parent != null) {
+                commit.setParentId(parent);
+            }
+            PersonIdent ident = new PersonIdent("Test", "test@example.com", n * 1000L, 0);
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage("Commit " + n + "\n");
+            parent = formatter.idFor(Constants.OBJ_COMMIT, commit.build());
+            contents.add(commit.build());
+            types.add(Constants.OBJ_COMMIT);
+            ids.add(parent);
+        }
+
+        try (Connection connection = DriverManager.getConnection(database.getUrl(), database.getProperties());
+             Statement creates = connection.createStatement()) {
+            creates.execute(
+                    "CREATE TABLE `git.objects` (\n" +
+                            "  `hash` VARCHAR(255) CHARACTER SET ascii COLLATE ascii_bin NOT NULL COMMENT 'Object Hash' PRIMARY KEY,\n" +
+                            "  `type` TINYINT(4) NOT NULL COMMENT 'Object Type',\n" +
+                            "  `content` LONGBLOB NOT NULL COMMENT 'Object Content'\n" +
+                            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Git Objects'"
+            );
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO `git.objects` (`hash`, `type`, `content`) VALUES (?, ?, ?)")) {
+                for (int i = 0; i < ids.size(); i++) {
+                    byte[] content = contents.get(i);
+                    if (i > 0) {
+                        byte[] header = Constants.encode(Constants.typeString(types.get(i)) + " " + content.length + "\0");
+                        byte[] stored = new byte[header.length + content.length];
+                        System.arraycopy(header, 0, stored, 0, header.length);
+                        System.arraycopy(content, 0, stored, header.length, content.length);
+                        content = stored;
+                    }
+                    insert.setString(1, ids.get(i).name());
+                    insert.setInt(2, types.get(i));
+                    insert.setBytes(3, content);
+                    insert.executeUpdate();
+                }
+            }
+        }
+
+        GitSqlRepository repository = database.open(new GitSqlOptions().setObjectCacheLimit(0));
+        GitSqlObjectDatabase objects = (GitSqlObjectDatabase) repository.getObjectDatabase();
+        assertEquals(1, objects.getSchemaVersion());
+        objects.upgrade();
+        assertEquals(GitSqlObjectDatabase.SCHEMA_VERSION, objects.getSchemaVersion());
+        assertEquals(ids.size(), rows(repository));
+
+        try (ObjectReader reader = repository.newObjectReader()) {
+            for (int i = 0; i < ids.size(); i++) {
+                ObjectLoader loader = reader.open(ids.get(i));
+                assertEquals((int) types.get(i), loader.getType());
+                assertEquals(contents.get(i).length, loader.getSize());
+                assertArrayEquals(contents.get(i), loader.getCachedBytes());
+            }
+        }
+
+        // The commit graph was backfilled from the migrated rows.
+        GitSqlCommitGraph.Commit head = repository.getCommitGraph()
+                .lookup(Collections.singleton(parent)).get(parent);
+        assertEquals(3, head.getGeneration());
+        assertTrue(repository.getCommitGraph().isAncestor(ids.get(2), parent));
+
+        // Upgrading again is a no-op, and new objects land beside the old.
+        objects.upgrade();
+        insertBlobs(repository, "new ", 10);
+        assertEquals(ids.size() + 10, rows(repository));
+    }
+
+    @Test
+    public void truncatedStreamsAreRejected() throws Exception {
+        GitSqlRepository repository = database.create(new GitSqlOptions().setStreamFileThreshold(1024));
+        byte[] data = new byte[4096];
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            inserter.insert(Constants.OBJ_BLOB, data.length + 1, new ByteArrayInputStream(data));
+            fail("insert of a short stream succeeded");
+        } catch (EOFException expected) {
+            // The length promised more bytes than the stream had.
+        }
+        assertEquals(0, rows(repository));
+    }
+}
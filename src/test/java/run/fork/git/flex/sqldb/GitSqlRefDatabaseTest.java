@@ -0,0 +1,375 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.ReflogEntry;
+import org.eclipse.jgit.lib.ReflogReader;
+import org.eclipse.jgit.lib.TagBuilder;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GitSqlRefDatabaseTest {
+    private static final String MAIN = Constants.R_HEADS + "main";
+    private static final String TOPIC = Constants.R_HEADS + "topic";
+
+    private ScratchDatabase database;
+    private GitSqlRepository repository;
+    private ObjectId a;
+    private ObjectId b;
+    private ObjectId c;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new ScratchDatabase();
+        repository = database.create(new GitSqlOptions());
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            ObjectId tree = inserter.insert(new TreeFormatter());
+            a = ScratchDatabase.commit(inserter, tree, null, 1);
+            b = ScratchDatabase.commit(inserter, tree, a, 2);
+            c = ScratchDatabase.commit(inserter, tree, b, 3);
+            inserter.flush();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    private RefUpdate.Result set(String name, ObjectId id) throws IOException {
+        RefUpdate update = repository.updateRef(name);
+        update.setNewObjectId(id);
+        return update.update();
+    }
+
+    // Another writer moves the ref between this update reading it and
+    // writing it; the write must not land on top.
+    @Test
+    public void racingUpdatesCompareAndSwap() throws Exception {
+        assertEquals(RefUpdate.Result.NEW, set(MAIN, a));
+
+        GitSqlRefDatabase refs = (GitSqlRefDatabase) repository.getRefDatabase();
+        RefUpdate racing = refs.new SqlRefUpdate(refs.exactRef(MAIN)) {
+            @Override
+            protected boolean tryLock(boolean deref) throws IOException {
+                boolean locked = super.tryLock(deref);
+                assertEquals(RefUpdate.Result.FAST_FORWARD, set(MAIN, b));
+                return locked;
+            }
+        };
+        racing.setNewObjectId(c);
+        assertEquals(RefUpdate.Result.LOCK_FAILURE, racing.update());
+        assertEquals(b, repository.exactRef(MAIN).getObjectId());
+    }
+
+    @Test
+    public void expectedOldIdIsChecked() throws Exception {
+        assertEquals(RefUpdate.Result.NEW, set(MAIN, a));
+
+        RefUpdate stale = repository.updateRef(MAIN);
+        stale.setNewObjectId(c);
+        stale.setExpectedOldObjectId(b);
+        assertEquals(RefUpdate.Result.LOCK_FAILURE, stale.update());
+        assertEquals(a, repository.exactRef(MAIN).getObjectId());
+    }
+
+    @Test
+    public void atomicBatchAppliesAllOrNothing() throws Exception {
+        assertEquals(RefUpdate.Result.NEW, set(MAIN, a));
+
+        BatchRefUpdate batch = repository.getRefDatabase().newBatchUpdate();
+        batch.setAtomic(true);
+        ReceiveCommand create = new ReceiveCommand(ObjectId.zeroId(), c, TOPIC);
+        ReceiveCommand stale = new ReceiveCommand(b, c, MAIN);
+        batch.addCommand(create, stale);
+        execute(batch);
+
+        assertEquals(ReceiveCommand.Result.LOCK_FAILURE, stale.getResult());
+        assertEquals(ReceiveCommand.Result.REJECTED_OTHER_REASON, create.getResult());
+        assertNull(repository.exactRef(TOPIC));
+        assertEquals(a, repository.exactRef(MAIN).getObjectId());
+
+        batch = repository.getRefDatabase().newBatchUpdate();
+        batch.setAtomic(true);
+        create = new ReceiveCommand(ObjectId.zeroId(), c, TOPIC);
+        ReceiveCommand forward = new ReceiveCommand(a, c, MAIN);
+        batch.addCommand(create, forward);
+        execute(batch);
+
+        assertEquals(ReceiveCommand.Result.OK, create.getResult());
+        assertEquals(ReceiveCommand.Result.OK, forward.getResult());
+        Map<String, Ref> refs = repository.getRefDatabase().getRefs(RefDatabase.ALL);
+        assertEquals(c, refs.get(TOPIC).getObjectId());
+        assertEquals(c, refs.get(MAIN).getObjectId());
+    }
+
+    @Test
+    public void batchRejectsNonFastForwards() throws Exception {
+        assertEquals(RefUpdate.Result.NEW, set(MAIN, c));
+
+        BatchRefUpdate batch = repository.getRefDatabase().newBatchUpdate();
+        ReceiveCommand rewind = new ReceiveCommand(c, a, MAIN);
+        batch.addCommand(rewind);
+        execute(batch);
+        assertEquals(ReceiveCommand.Result.REJECTED_NONFASTFORWARD, rewind.getResult());
+
+        batch = repository.getRefDatabase().newBatchUpdate();
+        batch.setAllowNonFastForwards(true);
+        rewind = new ReceiveCommand(c, a, MAIN);
+        batch.addCommand(rewind);
+        execute(batch);
+        assertEquals(ReceiveCommand.Result.OK, rewind.getResult());
+        assertEquals(a, repository.exactRef(MAIN).getObjectId());
+    }
+
+    @Test
+    public void deletedRefsAreGone() throws Exception {
+        assertEquals(RefUpdate.Result.NEW, set(TOPIC, a));
+
+        RefUpdate delete = repository.updateRef(TOPIC);
+        delete.setForceUpdate(true);
+        assertEquals(RefUpdate.Result.FORCED, delete.delete());
+        assertNull(repository.exactRef(TOPIC));
+        assertFalse(repository.getRefDatabase().getRefs(RefDatabase.ALL).containsKey(TOPIC));
+    }
+
+    private void sql(String statement) throws Exception {
+        try (Connection connection = repository.getDataSource().getConnection();
+             Statement execute = connection.createStatement()) {
+            execute.execute(statement);
+        }
+    }
+
+    // Another instance on the same tables sees a change once the version
+    // moves, and not before: the rows are only re-read when it does.
+    @Test
+    public void snapshotsRevalidateAgainstTheVersion() throws Exception {
+        GitSqlRepository other = database.open(new GitSqlOptions());
+        assertEquals(RefUpdate.Result.NEW, set(MAIN, a));
+        assertEquals(a, other.exactRef(MAIN).getObjectId());
+
+        assertEquals(RefUpdate.Result.FAST_FORWARD, set(MAIN, b));
+        assertEquals(b, other.exactRef(MAIN).getObjectId());
+        assertEquals(b, other.getRefDatabase().getRefs(Constants.R_HEADS).get(MAIN).getObjectId());
+
+        sql("UPDATE `git.refs` SET `target` = '" + c.name() + "', `peeled` = NULL WHERE `name` = '" + MAIN + "'");
+        assertEquals(b, other.exactRef(MAIN).getObjectId());
+        sql("UPDATE `git.ref_version` SET `version` = `version` + 1");
+        assertEquals(c, other.exactRef(MAIN).getObjectId());
+    }
+
+    // Listeners hear about each change once, when a read or a scan first
+    // sees it, whichever instance made it.
+    @Test
+    public void refsChangedEventsFollowTheVersion() throws Exception {
+        // Seen once first, so the HEAD link create() made is not news.
+        GitSqlRepository other = database.open(new GitSqlOptions());
+        repository.scanForRepoChanges();
+        other.scanForRepoChanges();
+
+        AtomicInteger ours = new AtomicInteger();
+        AtomicInteger theirs = new AtomicInteger();
+        repository.getListenerList().addRefsChangedListener(event -> ours.incrementAndGet());
+        other.getListenerList().addRefsChangedListener(event -> theirs.incrementAndGet());
+        repository.scanForRepoChanges();
+        other.scanForRepoChanges();
+        assertEquals(0, ours.get());
+        assertEquals(0, theirs.get());
+
+        assertEquals(RefUpdate.Result.NEW, set(MAIN, a));
+        repository.scanForRepoChanges();
+        other.scanForRepoChanges();
+        other.scanForRepoChanges();
+        assertEquals(1, ours.get());
+        assertEquals(1, theirs.get());
+
+        // A batch is one change however many refs it moves.
+        BatchRefUpdate batch = other.getRefDatabase().newBatchUpdate();
+        batch.addCommand(new ReceiveCommand(a, b, MAIN), new ReceiveCommand(ObjectId.zeroId(), b, TOPIC));
+        try (RevWalk walk = new RevWalk(other)) {
+            batch.execute(walk, NullProgressMonitor.INSTANCE);
+        }
+        assertEquals(b, repository.exactRef(TOPIC).getObjectId());
+        repository.scanForRepoChanges();
+        assertEquals(2, ours.get());
+    }
+
+    private String peeledColumn(String name) throws Exception {
+        try (Connection connection = repository.getDataSource().getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT `peeled` FROM `git.refs` WHERE `name` = ?")) {
+            select.setString(1, name);
+            try (ResultSet results = select.executeQuery()) {
+                assertTrue(results.next());
+                return results.getString("peeled");
+            }
+        }
+    }
+
+    private ObjectId tag(String name, ObjectId target) throws Exception {
+        TagBuilder tag = new TagBuilder();
+        tag.setTag(name);
+        tag.setObjectId(target, Constants.OBJ_COMMIT);
+        tag.setTagger(new PersonIdent("Test", "test@example.com", 0L, 0));
+        tag.setMessage(name + "\n");
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            ObjectId id = inserter.insert(tag);
+            inserter.flush();
+            return id;
+        }
+    }
+
+    // Every write stores what the ref peels to, so reads come back peeled
+    // without opening the tag; a link clears it.
+    @Test
+    public void peeledTargetsAreStoredWithTheRef() throws Exception {
+        String v1 = Constants.R_TAGS + "v1";
+        String v2 = Constants.R_TAGS + "v2";
+        ObjectId tag1 = tag("v1", b);
+        ObjectId tag2 = tag("v2", c);
+
+        assertEquals(RefUpdate.Result.NEW, set(v1, tag1));
+        assertEquals(RefUpdate.Result.NEW, set(MAIN, a));
+        assertEquals(b.name(), peeledColumn(v1));
+        assertEquals(a.name(), peeledColumn(MAIN));
+
+        Ref ref = repository.exactRef(v1);
+        assertTrue(ref.isPeeled());
+        assertEquals(b, ref.getPeeledObjectId());
+        ref = repository.exactRef(MAIN);
+        assertTrue(ref.isPeeled());
+        assertNull(ref.getPeeledObjectId());
+
+        BatchRefUpdate batch = repository.getRefDatabase().newBatchUpdate();
+        batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), tag2, v2));
+        execute(batch);
+        assertEquals(c.name(), peeledColumn(v2));
+        ref = repository.getRefDatabase().getRefs(Constants.R_TAGS).get(v2);
+        assertTrue(ref.isPeeled());
+        assertEquals(c, ref.getPeeledObjectId());
+        assertSame(ref, repository.getRefDatabase().peel(ref));
+
+        // Moved from a tag to a commit, then turned into a link.
+        RefUpdate update = repository.updateRef(v1);
+        update.setNewObjectId(c);
+        update.setForceUpdate(true);
+        assertEquals(RefUpdate.Result.FORCED, update.update());
+        assertEquals(c.name(), peeledColumn(v1));
+        assertNull(repository.exactRef(v1).getPeeledObjectId());
+
+        assertEquals(RefUpdate.Result.FORCED, repository.updateRef(v1).link(v2));
+        assertNull(peeledColumn(v1));
+        ref = repository.exactRef(v1);
+        assertTrue(ref.isSymbolic());
+        assertEquals(c, ref.getLeaf().getPeeledObjectId());
+    }
+
+    private static List<String> comments(List<ReflogEntry> entries) {
+        List<String> comments = new ArrayList<>();
+        for (ReflogEntry e : entries) {
+            comments.add(e.getComment());
+        }
+        return comments;
+    }
+
+    @Test
+    public void reflogPagesNewestFirst() throws Exception {
+        ObjectId[] ids = {a, b, c};
+        for (int i = 0; i < 7; i++) {
+            RefUpdate update = repository.updateRef(MAIN);
+            update.setNewObjectId(ids[i % 3]);
+            update.setForceUpdate(true);
+            update.setRefLogMessage("step " + i, false);
+            update.update();
+        }
+
+        ReflogReader reflog = repository.getReflogReader(MAIN);
+        List<ReflogEntry> all = reflog.getReverseEntries();
+        assertEquals(Arrays.asList("step 6", "step 5", "step 4", "step 3", "step 2", "step 1", "step 0"),
+                comments(all));
+        for (int i = 0; i < all.size() - 1; i++) {
+            assertEquals(all.get(i + 1).getNewId(), all.get(i).getOldId());
+        }
+        assertEquals(ObjectId.zeroId(), all.get(6).getOldId());
+        assertEquals(a, reflog.getLastEntry().getNewId());
+
+        assertEquals(comments(all.subList(0, 3)), comments(reflog.getReverseEntries(3)));
+        assertEquals("step 3", reflog.getReverseEntry(3).getComment());
+        assertEquals("step 0", reflog.getReverseEntry(6).getComment());
+        assertNull(reflog.getReverseEntry(7));
+        assertTrue(reflog.getReverseEntries(0).isEmpty());
+    }
+
+    // An update through HEAD is logged under both names; a batch logs every
+    // command it applies, several rows to a statement, and none it rejects.
+    @Test
+    public void reflogFollowsSymbolicAndBatchUpdates() throws Exception {
+        RefUpdate update = repository.updateRef(Constants.HEAD);
+        update.setNewObjectId(a);
+        update.setRefLogMessage("through head", false);
+        assertEquals(RefUpdate.Result.NEW, update.update());
+        assertEquals("through head", repository.getReflogReader(Constants.HEAD).getLastEntry().getComment());
+        assertEquals("through head",
+                repository.getReflogReader(Constants.R_HEADS + Constants.MASTER).getLastEntry().getComment());
+
+        GitSqlRepository chunked = database.open(new GitSqlOptions().setBulkChunkSize(2));
+        BatchRefUpdate batch = chunked.getRefDatabase().newBatchUpdate();
+        batch.setRefLogMessage("push", true);
+        for (int i = 0; i < 5; i++) {
+            batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), b, Constants.R_HEADS + "b" + i));
+        }
+        try (RevWalk walk = new RevWalk(chunked)) {
+            batch.execute(walk, NullProgressMonitor.INSTANCE);
+        }
+        for (int i = 0; i < 5; i++) {
+            List<ReflogEntry> entries = repository.getReflogReader(Constants.R_HEADS + "b" + i).getReverseEntries();
+            assertEquals(Collections.singletonList("push: created"), comments(entries));
+            assertEquals(b, entries.get(0).getNewId());
+        }
+
+        batch = chunked.getRefDatabase().newBatchUpdate();
+        batch.setAtomic(true);
+        batch.setRefLogMessage("rejected", false);
+        batch.addCommand(new ReceiveCommand(b, c, Constants.R_HEADS + "b0"),
+                new ReceiveCommand(a, c, Constants.R_HEADS + "b1"));
+        try (RevWalk walk = new RevWalk(chunked)) {
+            batch.execute(walk, NullProgressMonitor.INSTANCE);
+        }
+        assertEquals(1, repository.getReflogReader(Constants.R_HEADS + "b0").getReverseEntries().size());
+    }
+
+    private void execute(BatchRefUpdate batch) throws Exception {
+        try (RevWalk walk = new RevWalk(repository)) {
+            batch.execute(walk, NullProgressMonitor.INSTANCE);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PathIndexTest {
+    private ScratchDatabase database;
+    private GitSqlRepository repository;
+    private List<ObjectId> commits;
+
+    // Six commits written with the index off, so every tree it needs has to
+    // be loaded and backfilled:
+    //   0  adds everything
+    //   1  edits a/b.txt, xay/f and 50%off/f
+    //   2  replaces the file README with a directory
+    //   3  replaces the directory a with a file
+    //   4  deletes x_y
+    //   5  changes nothing
+    @Before
+    public void setUp() throws Exception {
+        database = new ScratchDatabase();
+        repository = database.create(new GitSqlOptions()
+                .setBulkChunkSize(2)
+                .setObjectCacheLimit(0));
+
+        Map<String, String> files = new TreeMap<>();
+        files.put("a/b.txt", "b");
+        files.put("a/c.txt", "c");
+        files.put("README", "readme");
+        files.put("x_y/f", "x_y");
+        files.put("xay/f", "xay");
+        files.put("50%/f", "50%");
+        files.put("50%off/f", "50%off");
+
+        commits = new ArrayList<>();
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            ObjectId head = ScratchDatabase.commit(inserter, tree(inserter, files), null, 0);
+            commits.add(head);
+
+            files.put("a/b.txt", "b2");
+            files.put("xay/f", "xay2");
+            files.put("50%off/f", "50%off2");
+            head = ScratchDatabase.commit(inserter, tree(inserter, files), head, 1);
+            commits.add(head);
+
+            files.remove("README");
+            files.put("README/inner", "readme");
+            head = ScratchDatabase.commit(inserter, tree(inserter, files), head, 2);
+            commits.add(head);
+
+            files.remove("a/b.txt");
+            files.remove("a/c.txt");
+            files.put("a", "a");
+            head = ScratchDatabase.commit(inserter, tree(inserter, files), head, 3);
+            commits.add(head);
+
+            files.remove("x_y/f");
+            head = ScratchDatabase.commit(inserter, tree(inserter, files), head, 4);
+            commits.add(head);
+
+            head = ScratchDatabase.commit(inserter, tree(inserter, files), head, 5);
+            commits.add(head);
+            inserter.flush();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    // Builds the tree of the given files, one level at a time.
+    private static ObjectId tree(ObjectInserter inserter, Map<String, String> files) throws Exception {
+        Map<String, Map<String, String>> dirs = new TreeMap<>();
+        Map<String, String> blobs = new TreeMap<>();
+        for (Map.Entry<String, String> f : files.entrySet()) {
+            int slash = f.getKey().indexOf('/');
+            if (slash < 0) {
+                blobs.put(f.getKey(), f.getValue());
+            } else {
+                dirs.computeIfAbsent(f.getKey().substring(0, slash), k -> new TreeMap<>())
+                        .put(f.getKey().substring(slash + 1), f.getValue());
+            }
+        }
+
+        // Git sorts a directory as if its name ended in a slash.
+        Map<String, Object> sorted = new TreeMap<>();
+        for (Map.Entry<String, String> b : blobs.entrySet()) {
+            sorted.put(b.getKey(), b.getValue());
+        }
+        for (Map.Entry<String, Map<String, String>> d : dirs.entrySet()) {
+            sorted.put(d.getKey() + "/", d.getValue());
+        }
+
+        TreeFormatter tree = new TreeFormatter();
+        for (Map.Entry<String, Object> e : sorted.entrySet()) {
+            if (e.getValue() instanceof String) {
+                tree.append(e.getKey(), FileMode.REGULAR_FILE,
+                        inserter.insert(Constants.OBJ_BLOB, Constants.encode((String) e.getValue())));
+            } else {
+                @SuppressWarnings("unchecked")
+                Map<String, String> dir = (Map<String, String>) e.getValue();
+                String name = e.getKey().substring(0, e.getKey().length() - 1);
+                tree.append(name, FileMode.TREE, tree(inserter, dir));
+            }
+        }
+        return inserter.insert(tree);
+    }
+
+    private int rows(String table) throws Exception {
+        try (Connection connection = repository.getDataSource().getConnection();
+             PreparedStatement count = connection.prepareStatement("SELECT COUNT(*) FROM `" + table + "`");
+             ResultSet results = count.executeQuery()) {
+            results.next();
+            return results.getInt(1);
+        }
+    }
+
+    // The paths a commit changed, and what they became.
+    private Map<String, ObjectId> changes(ObjectId commit) throws Exception {
+        Map<String, ObjectId> changes = new TreeMap<>();
+        try (Connection connection = repository.getDataSource().getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT `path`, `mode`, `object` FROM `git.paths` WHERE `commit` = ? AND `path` <> ''")) {
+            select.setBytes(1, GitSqlObjectDatabase.raw(commit));
+            try (ResultSet results = select.executeQuery()) {
+                while (results.next()) {
+                    ObjectId id = ObjectId.fromRaw(results.getBytes("object"));
+                    assertEquals(id.equals(ObjectId.zeroId()), results.getInt("mode") == 0);
+                    changes.put(new String(results.getBytes("path"), StandardCharsets.UTF_8), id);
+                }
+            }
+        }
+        return changes;
+    }
+
+    private List<ObjectId> history(String path, int limit) throws Exception {
+        List<ObjectId> ids = new ArrayList<>();
+        for (GitSqlCommitGraph.Commit c : repository.getPathIndex().history(path, limit)) {
+            ids.add(c.getId());
+        }
+        return ids;
+    }
+
+    private List<String> list(int commit, String path, boolean recursive) throws Exception {
+        List<String> paths = new ArrayList<>();
+        for (GitSqlPathIndex.Entry e : repository.getPathIndex().list(commits.get(commit), path, recursive)) {
+            paths.add(e.getPath());
+        }
+        return paths;
+    }
+
+    private static Map<String, ObjectId> changed(Object... pathsAndIds) {
+        Map<String, ObjectId> changed = new TreeMap<>();
+        for (int i = 0; i < pathsAndIds.length; i += 2) {
+            changed.put((String) pathsAndIds[i], (ObjectId) pathsAndIds[i + 1]);
+        }
+        return changed;
+    }
+
+    private static ObjectId blob(String content) {
+        return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, Constants.encode(content));
+    }
+
+    @Test
+    public void updateIndexesEveryCommitOnce() throws Exception {
+        assertEquals(0, rows("git.trees"));
+        assertEquals(6, repository.getPathIndex().update());
+        assertEquals(0, repository.getPathIndex().update());
+
+        // The trees were backfilled as they were compared.
+        assertTrue(rows("git.trees") > 0);
+
+        assertEquals(7, changes(commits.get(0)).size());
+        assertEquals(changed(
+                "a/b.txt", blob("b2"),
+                "xay/f", blob("xay2"),
+                "50%off/f", blob("50%off2")), changes(commits.get(1)));
+        assertEquals(Collections.emptyMap(), changes(commits.get(5)));
+    }
+
+    @Test
+    public void replacementsRecordTheOldSideAsDeleted() throws Exception {
+        repository.getPathIndex().update();
+
+        // A file became a directory, then a directory a file.
+        assertEquals(changed(
+                "README", ObjectId.zeroId(),
+                "README/inner", blob("readme")), changes(commits.get(2)));
+        assertEquals(changed(
+                "a", blob("a"),
+                "a/b.txt", ObjectId.zeroId(),
+                "a/c.txt", ObjectId.zeroId()), changes(commits.get(3)));
+        assertEquals(changed(
+                "x_y/f", ObjectId.zeroId()), changes(commits.get(4)));
+    }
+
+    @Test
+    public void historyMatchesPathsLiterally() throws Exception {
+        repository.getPathIndex().update();
+
+        assertEquals(Arrays.asList(commits.get(3), commits.get(1), commits.get(0)), history("a", 0));
+        assertEquals(Arrays.asList(commits.get(3), commits.get(1)), history("a", 2));
+        assertEquals(Arrays.asList(commits.get(3), commits.get(1), commits.get(0)), history("a/b.txt", 0));
+        assertEquals(Arrays.asList(commits.get(2), commits.get(0)), history("README", 0));
+
+        // Neither wildcard reaches the sibling it would match unescaped.
+        assertEquals(Arrays.asList(commits.get(4), commits.get(0)), history("x_y", 0));
+        assertEquals(Collections.singletonList(commits.get(0)), history("50%", 0));
+        assertEquals(Collections.emptyList(), history("x", 0));
+    }
+
+    @Test
+    public void listWalksTheIndexedTrees() throws Exception {
+        assertEquals(Arrays.asList("50%", "50%off", "README", "a", "x_y", "xay"), list(1, "", false));
+        assertEquals(Arrays.asList("50%/f", "50%off/f", "README/inner", "a/b.txt", "a/c.txt", "x_y/f", "xay/f"),
+                list(2, "", true));
+        assertEquals(Arrays.asList("a/b.txt", "a/c.txt"), list(2, "a", false));
+        assertEquals(Collections.singletonList("a"), list(3, "a", false));
+        assertEquals(Collections.singletonList("README/inner"), list(2, "README/inner", false));
+        assertEquals(Collections.emptyList(), list(4, "x_y", true));
+
+        // Listing loaded the trees it read into the index.
+        assertTrue(rows("git.trees") > 0);
+    }
+}
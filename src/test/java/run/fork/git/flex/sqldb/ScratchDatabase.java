@@ -0,0 +1,137 @@
+package run.fork.git.flex.sqldb;
+
+import ch.vorburger.exec.ManagedProcessException;
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import org.eclipse.jgit.lib.BaseRepositoryBuilder;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A database of its own for one test or benchmark trial. The server is the
+// one in FLEX_SQL_URL (e.g. jdbc:mysql://localhost:3306) when it is set,
+// with FLEX_SQL_USER and FLEX_SQL_PASSWORD, and otherwise an embedded
+// MariaDB started once per JVM, so everything runs offline. The database
+// is dropped on close, along with any repositories opened on it.
+public final class ScratchDatabase implements AutoCloseable {
+    private static final AtomicInteger databases = new AtomicInteger();
+    private static String server;
+
+    private final String name;
+    private final Properties properties = new Properties();
+    private final List<AutoCloseable> opened = new ArrayList<>();
+
+    public ScratchDatabase() {
+        name = "flex_scratch_" + System.nanoTime() + "_" + databases.incrementAndGet();
+        properties.setProperty("user", env("FLEX_SQL_USER", "root"));
+        properties.setProperty("password", env("FLEX_SQL_PASSWORD", ""));
+        properties.setProperty("rewriteBatchedStatements", "true");
+        properties.setProperty("useSSL", "false");
+        properties.setProperty("serverTimezone", "UTC");
+        properties.setProperty("createDatabaseIfNotExist", "true");
+    }
+
+    private static String env(String name, String fallback) {
+        String value = System.getenv(name);
+        return value != null && !value.isEmpty() ? value : fallback;
+    }
+
+    private static synchronized String server() throws IOException {
+        if (server == null) {
+            server = System.getenv("FLEX_SQL_URL");
+            if (server == null || server.isEmpty()) {
+                try {
+                    DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+                    config.setPort(0);
+                    config.addArg("--max_allowed_packet=64M");
+                    DB db = DB.newEmbeddedDB(config.build());
+                    db.start();
+                    server = "jdbc:mysql://localhost:" + config.getPort();
+                } catch (ManagedProcessException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (server.endsWith("/")) {
+                server = server.substring(0, server.length() - 1);
+            }
+        }
+        return server;
+    }
+
+    public String getUrl() throws IOException {
+        return server() + "/" + name;
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public SqlConnectionPool pool(int connections) throws IOException {
+        return track(new SqlConnectionPool(getUrl(), properties, connections));
+    }
+
+    public GitSqlRepository open(GitSqlOptions options) throws IOException {
+        return track(new GitSqlRepository(getUrl(), properties, options, new BaseRepositoryBuilder<>()));
+    }
+
+    // Opens a repository and creates its tables.
+    public GitSqlRepository create(GitSqlOptions options) throws IOException {
+        GitSqlRepository repository = open(options);
+        repository.create(true);
+        return repository;
+    }
+
+    public GitSqlHost host(GitSqlOptions options) throws IOException {
+        return track(new GitSqlHost(getUrl(), properties, options));
+    }
+
+    // A commit of the tree with at most one parent, timed n seconds after
+    // the epoch so commits made in order sort in order.
+    public static ObjectId commit(ObjectInserter inserter, ObjectId tree, ObjectId parent, int n) throws IOException {
+        CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId(tree);
+        if (parent != null) {
+            commit.setParentId(parent);
+        }
+        PersonIdent ident = new PersonIdent("Test", "test@example.com", n * 1000L, 0);
+        commit.setAuthor(ident);
+        commit.setCommitter(ident);
+        commit.setMessage("Commit " + n + "\n");
+        return inserter.insert(commit);
+    }
+
+    private <T extends AutoCloseable> T track(T resource) {
+        opened.add(resource);
+        return resource;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (AutoCloseable resource : opened) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        opened.clear();
+
+        try (Connection connection = DriverManager.getConnection(getUrl(), properties);
+             Statement drop = connection.createStatement()) {
+            drop.execute("DROP DATABASE IF EXISTS `" + name + "`");
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
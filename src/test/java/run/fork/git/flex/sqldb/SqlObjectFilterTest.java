@@ -0,0 +1,59 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.sha1.SHA1;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SqlObjectFilterTest {
+    private static final int OBJECTS = 100000;
+
+    private static ObjectId id(int n) {
+        SHA1 sha = SHA1.newInstance();
+        sha.update(ByteBuffer.allocate(4).putInt(n).array());
+        return sha.toObjectId();
+    }
+
+    @Test
+    public void neverMissesAnAddedId() {
+        SqlObjectFilter filter = new SqlObjectFilter(OBJECTS, 10);
+        for (int i = 0; i < OBJECTS; i++) {
+            filter.add(id(i));
+        }
+        for (int i = 0; i < OBJECTS; i++) {
+            assertTrue(filter.mightContain(id(i)));
+        }
+    }
+
+    // Ten bits an object is about a 1% false positive rate at capacity.
+    @Test
+    public void falsePositiveRateAtCapacity() {
+        SqlObjectFilter filter = new SqlObjectFilter(OBJECTS, 10);
+        for (int i = 0; i < OBJECTS; i++) {
+            filter.add(id(i));
+        }
+
+        int hits = 0;
+        for (int i = OBJECTS; i < 2 * OBJECTS; i++) {
+            if (filter.mightContain(id(i))) {
+                hits++;
+            }
+        }
+        assertTrue("false positive rate " + hits / (double) OBJECTS, hits < OBJECTS * 2 / 100);
+    }
+
+    @Test
+    public void saturatesPastCapacity() {
+        SqlObjectFilter filter = new SqlObjectFilter(100, 10);
+        for (int i = 0; i < 100; i++) {
+            filter.add(id(i));
+        }
+        assertFalse(filter.isSaturated());
+        filter.add(id(100));
+        assertTrue(filter.isSaturated());
+    }
+}
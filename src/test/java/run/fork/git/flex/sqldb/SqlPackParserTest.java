@@ -0,0 +1,154 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.transport.ReceivedPackStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SqlPackParserTest {
+    private ScratchDatabase database;
+    private GitSqlRepository repository;
+    private InMemoryRepository source;
+    private List<ObjectId> commits;
+
+    // Four commits of a large blob and a text file, each one editing both a
+    // little, so a pack of the later ones is mostly deltas.
+    @Before
+    public void setUp() throws Exception {
+        database = new ScratchDatabase();
+        repository = database.create(new GitSqlOptions()
+                .setStreamFileThreshold(64 * 1024)
+                .setObjectCacheLimit(0));
+
+        source = new InMemoryRepository(new DfsRepositoryDescription("source"));
+        commits = new ArrayList<>();
+        byte[] big = new byte[256 * 1024];
+        new Random(11).nextBytes(big);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+
+        try (ObjectInserter inserter = source.newObjectInserter()) {
+            ObjectId parent = null;
+            for (int n = 0; n < 4; n++) {
+                big[n * 1000] ^= 1;
+                text.append("edit ").append(n).append('\n');
+
+                TreeFormatter tree = new TreeFormatter();
+                tree.append("big", FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, big));
+                tree.append("text", FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, Constants.encode(text.toString())));
+                CommitBuilder commit = new CommitBuilder();
+                commit.setTreeId(inserter.insert(tree));
+                if (parent != null) {
+                    commit.setParentId(parent);
+                }
+                PersonIdent ident = new PersonIdent("Test", "test@example.com", n * 1000L, 0);
+                commit.setAuthor(ident);
+                commit.setCommitter(ident);
+                commit.setMessage("Commit " + n + "\n");
+                parent = inserter.insert(commit);
+                commits.add(parent);
+            }
+            inserter.flush();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        source.close();
+        database.close();
+    }
+
+    private byte[] pack(Set<ObjectId> want, Set<ObjectId> have) throws Exception {
+        ByteArrayOutputStream pack = new ByteArrayOutputStream();
+        try (PackWriter writer = new PackWriter(source)) {
+            writer.setThin(true);
+            writer.setDeltaBaseAsOffset(true);
+            writer.preparePack(NullProgressMonitor.INSTANCE, want, have);
+            writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, pack);
+        }
+        return pack.toByteArray();
+    }
+
+    private ReceivedPackStatistics receive(byte[] pack, Set<ObjectId> bases) throws Exception {
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            PackParser parser = inserter.newPackParser(new ByteArrayInputStream(pack));
+            parser.setAllowThin(true);
+            parser.setNeedBaseObjectIds(true);
+            parser.parse(NullProgressMonitor.INSTANCE);
+            inserter.flush();
+            for (ObjectId id : parser.getBaseObjectIds()) {
+                bases.add(id.copy());
+            }
+            return parser.getReceivedPackStatistics();
+        }
+    }
+
+    // The first commit arrives whole, its blobs spooled and re-read from the
+    // pack once it is in; the rest arrive as a thin pack whose deltas chain
+    // onto each other and onto bases only the SQL store has.
+    @Test
+    public void thinPackResolvesAgainstTheStore() throws Exception {
+        Set<ObjectId> bases = new HashSet<>();
+        ReceivedPackStatistics first = receive(
+                pack(Collections.singleton(commits.get(0)), Collections.<ObjectId>emptySet()), bases);
+        assertEquals(2, first.getNumWholeBlob());
+        assertTrue(bases.isEmpty());
+
+        ReceivedPackStatistics thin = receive(
+                pack(Collections.singleton(commits.get(3)), Collections.singleton(commits.get(0))), bases);
+        assertFalse(bases.isEmpty());
+        assertTrue(thin.getNumRefDelta() > 0);
+        assertTrue(thin.getNumOfsDelta() > 0);
+        assertEquals(0, thin.getNumWholeBlob());
+
+        try (ObjectReader expected = source.newObjectReader();
+             ObjectReader actual = repository.newObjectReader();
+             ObjectWalk walk = new ObjectWalk(source)) {
+            walk.markStart(walk.parseCommit(commits.get(3)));
+            int objects = 0;
+            RevObject o;
+            while ((o = walk.next()) != null) {
+                assertArrayEquals(expected.open(o).getCachedBytes(Integer.MAX_VALUE),
+                        actual.open(o).getCachedBytes(Integer.MAX_VALUE));
+                objects++;
+            }
+            while ((o = walk.nextObject()) != null) {
+                assertArrayEquals(expected.open(o).getCachedBytes(Integer.MAX_VALUE),
+                        actual.open(o).getCachedBytes(Integer.MAX_VALUE));
+                objects++;
+            }
+            assertEquals(4 * 4, objects);
+        }
+    }
+}
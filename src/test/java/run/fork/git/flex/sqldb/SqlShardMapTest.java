@@ -0,0 +1,178 @@
+package run.fork.git.flex.sqldb;
+
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AsyncObjectLoaderQueue;
+import org.eclipse.jgit.lib.BaseRepositoryBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SqlShardMapTest {
+    private ScratchDatabase first;
+    private ScratchDatabase second;
+    private SqlConnectionPool main;
+    private SqlConnectionPool other;
+
+    @Before
+    public void setUp() throws Exception {
+        first = new ScratchDatabase();
+        second = new ScratchDatabase();
+        main = first.pool(4);
+        other = second.pool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        first.close();
+        second.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheSameDataSourceTwice() {
+        new SqlShardMap(Arrays.<DataSource>asList(main, main));
+    }
+
+    @Test
+    public void routesByFirstByte() {
+        SqlShardMap shards = new SqlShardMap(Arrays.<DataSource>asList(main, other)).route(0, 15, 1);
+        assertEquals(1, shards.shardOf(0));
+        assertEquals(1, shards.shardOf(15));
+        assertEquals(0, shards.shardOf(16));
+        assertEquals(1, shards.shardOf(0xff));
+    }
+
+    @Test
+    public void prefixRangesFollowTheRoutes() throws Exception {
+        SqlShardMap shards = new SqlShardMap(Arrays.<DataSource>asList(main, other)).route(0, 7, 1);
+        GitSqlRepository repository = new GitSqlRepository(main, new GitSqlOptions().setShardMap(shards),
+                new BaseRepositoryBuilder<>());
+        try {
+            GitSqlObjectDatabase objects = (GitSqlObjectDatabase) repository.getObjectDatabase();
+            List<String> ranges = new ArrayList<>();
+            objects.eachPrefix(ObjectId.fromString("0680000000000000000000000000000000000000"),
+                    ObjectId.fromString("08ffffffffffffffffffffffffffffffff000000"),
+                    (shard, lo, hi) -> ranges.add(shard + " " + ObjectId.fromRaw(lo).name() + " " + ObjectId.fromRaw(hi).name()));
+            assertEquals(Arrays.asList(
+                    "1 0680000000000000000000000000000000000000 06ffffffffffffffffffffffffffffffffffffff",
+                    "1 0700000000000000000000000000000000000000 07ffffffffffffffffffffffffffffffffffffff",
+                    "0 0800000000000000000000000000000000000000 08ffffffffffffffffffffffffffffffff000000"
+            ), ranges);
+
+            // A one digit prefix that straddles the route finds rows on both shards.
+            repository.create(true);
+            List<ObjectId> matching = new ArrayList<>();
+            try (ObjectInserter inserter = repository.newObjectInserter()) {
+                for (int i = 0; matching.size() < 20; i++) {
+                    ObjectId id = inserter.insert(Constants.OBJ_BLOB, Constants.encode("blob " + i));
+                    if (id.getFirstByte() < 0x10) {
+                        matching.add(id);
+                    }
+                }
+                inserter.flush();
+            }
+            try (ObjectReader reader = repository.newObjectReader()) {
+                assertEquals(new HashSet<>(matching), new HashSet<>(reader.resolve(AbbreviatedObjectId.fromString("0"))));
+            }
+            assertTrue(rows(main) > 0 && rows(other) > 0);
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void syncWrites() throws Exception {
+        roundTrip(new GitSqlOptions());
+    }
+
+    @Test
+    public void writeBehindWithFilter() throws Exception {
+        roundTrip(new GitSqlOptions().setWriteBehind(true).setObjectFilter(true));
+    }
+
+    private void roundTrip(GitSqlOptions options) throws Exception {
+        SqlShardMap shards = new SqlShardMap(Arrays.<DataSource>asList(main, other)).route(0, 15, 1);
+        GitSqlRepository repository = new GitSqlRepository(main, options
+                .setBulkChunkSize(50)
+                .setInsertBatchLimit(16 * 1024)
+                .setObjectCacheLimit(0)
+                .setShardMap(shards), new BaseRepositoryBuilder<>());
+        try {
+            repository.create(true);
+
+            List<ObjectId> ids = new ArrayList<>();
+            try (ObjectInserter inserter = repository.newObjectInserter()) {
+                for (int i = 0; i < 1000; i++) {
+                    ids.add(inserter.insert(Constants.OBJ_BLOB, Constants.encode("blob " + i)));
+                }
+                inserter.flush();
+            }
+
+            int routed = 0;
+            for (ObjectId id : ids) {
+                if (shards.shardOf(id) == 1) {
+                    routed++;
+                }
+            }
+            assertEquals(ids.size() - routed, rows(main));
+            assertEquals(routed, rows(other));
+
+            List<ObjectId> probe = new ArrayList<>(ids);
+            ObjectId absent = ObjectId.fromString("0111111111111111111111111111111111111111");
+            probe.add(absent);
+            GitSqlObjectDatabase objects = (GitSqlObjectDatabase) repository.getObjectDatabase();
+            assertEquals(new HashSet<>(ids), objects.findExisting(probe));
+
+            try (ObjectReader reader = repository.newObjectReader()) {
+                assertFalse(reader.has(absent));
+                for (ObjectId id : ids) {
+                    assertTrue(reader.has(id));
+                }
+
+                int read = 0;
+                AsyncObjectLoaderQueue<ObjectId> queue = reader.open(ids, true);
+                while (queue.next()) {
+                    int n = ids.indexOf(queue.getObjectId());
+                    assertArrayEquals(Constants.encode("blob " + n), queue.open().getCachedBytes());
+                    read++;
+                }
+                assertEquals(ids.size(), read);
+
+                // Prefixes on either side of the route.
+                for (ObjectId id : ids.subList(0, 50)) {
+                    Collection<ObjectId> matches = reader.resolve(AbbreviatedObjectId.fromString(id.name().substring(0, 8)));
+                    assertTrue(matches.contains(id));
+                }
+            }
+        } finally {
+            repository.close();
+        }
+    }
+
+    private static int rows(DataSource shard) throws Exception {
+        try (Connection connection = shard.getConnection();
+             PreparedStatement count = connection.prepareStatement("SELECT COUNT(*) FROM `git.objects`");
+             ResultSet results = count.executeQuery()) {
+            results.next();
+            return results.getInt(1);
+        }
+    }
+}